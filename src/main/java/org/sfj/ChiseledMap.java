@@ -15,61 +15,126 @@
  */
 package org.sfj;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.ConcurrentMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.function.BiFunction;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.CREATE_NEW;
 import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 import static java.nio.file.StandardOpenOption.WRITE;
 
 /**
  * <p>Dead simple persistent ordered map. It is thread safe, via coarse synchronization
  * on writes. Reads are unsynchronized, though the underlying FileChannel is shared.
- * Deletes do not reclaim file space; they simply stop referencing the
+ * Deletes do not reclaim file space on their own; they simply stop referencing the
  * block. Writes are CRC checked on restart, file is truncated to match the valid
  * length.
  *
  * <p>This class is useful for prototyping when you need a persistent store and don't
- * want to bother much. You provide a file, and optionally an encoder and decoder, and
+ * want to bother much. You provide a file, and optionally an encoder and decoder (or
+ * a pair of Codecs, which read and write buffers in place), and
  * you can shove Objects in a sorted map structure that will serve get()s from disk,
  * and save mutations to disk. Basically, every change is written to a log, with crc.
- * Old entries are just left there; no garbage collection is done. So it is not
- * useful for massive stores, or fast changing ones, but for prototyping it's quite useful.
+ * Old entries are left there until compact() is called, or a background compactor
+ * is started via compactWhen(); compaction copies live records to a new file while
+ * writers keep appending, then swaps the new file in.
+ *
+ * <p>Values may carry a time to live, stored in their record. Expired entries read
+ * as absent at once; reap(), reapEvery() or the next touch of the key drops them
+ * from the index, and size() counts them until then. A restart skips them.
  *
  * <p>Null values are not allowed. An in-memory sorted list keeps keys/disk addresses
  * for lookup. On restart, the entire log file is traversed, rebuilding the in memory
  * picture of keys to locations.
  *
+ * <p>It is a ConcurrentNavigableMap. Range views and navigation work off the in
+ * memory index; scans read values in batches sorted by file position.
+ *
  * <p>The core methods are ioGet(), ioSet(), and ioUnset(); these throw IOExceptions
  * on ... IO exceptions. The Map methods wrap these methods and throw
  * the unchecked RuntimeIOException.
  * @author cschanck
  */
-public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap<K, V> {
 
   public static final int DIGEST_MASK = 0x7fffffff;
 
   public static final byte[] HDR = "(-:AnonymousBC:ChiseledMap-)".getBytes(StandardCharsets.US_ASCII);
 
+  /**
+   * Header of log files whose records are checksummed with CRC32C.
+   */
+  public static final byte[] HDR_CRC32C = "(-:AnonymousBC:ChiseledMapC)".getBytes(StandardCharsets.US_ASCII);
+
   /**
    * Open methods.
    */
@@ -86,6 +151,68 @@ public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentMa
     }
   }
 
+  /**
+   * When mutations are forced to disk. NONE leaves it to flush() and close();
+   * PERIODIC forces on a timer, so a crash loses at most that long; SYNC forces
+   * before each mutation returns; GROUP_COMMIT does the same, but the first
+   * writer to arrive waits up to maxDelay for up to maxBatch others, and one
+   * force covers all of them. Concurrent SYNC writers share forces the same way,
+   * just without waiting for company.
+   */
+  public static final class Durability {
+    private enum Kind {
+      NONE, PERIODIC, GROUP_COMMIT, SYNC
+    }
+
+    public static final Durability NONE = new Durability(Kind.NONE, 0, 0);
+    public static final Durability SYNC = new Durability(Kind.SYNC, 1, 0);
+
+    private final Kind kind;
+    private final int maxBatch;
+    private final long nanos;
+
+    private Durability(Kind kind, int maxBatch, long nanos) {
+      this.kind = kind;
+      this.maxBatch = maxBatch;
+      this.nanos = nanos;
+    }
+
+    /**
+     * Force in the background every so often.
+     * @param ms interval in milliseconds
+     * @return policy
+     */
+    public static Durability periodic(long ms) {
+      if (ms <= 0) {
+        throw new IllegalArgumentException("Interval must be positive: " + ms);
+      }
+      return new Durability(Kind.PERIODIC, 0, TimeUnit.MILLISECONDS.toNanos(ms));
+    }
+
+    /**
+     * Writers block until forced, sharing one force per batch.
+     * @param maxBatch writers to wait for before forcing
+     * @param maxDelay longest the first writer will wait for the rest
+     * @param units units for maxDelay
+     * @return policy
+     */
+    public static Durability groupCommit(int maxBatch, long maxDelay, TimeUnit units) {
+      if (maxBatch < 1 || maxDelay < 0) {
+        throw new IllegalArgumentException("Bad group commit: " + maxBatch + "/" + maxDelay);
+      }
+      return new Durability(Kind.GROUP_COMMIT, maxBatch, units.toNanos(maxDelay));
+    }
+
+    private boolean waits() {
+      return kind == Kind.SYNC || kind == Kind.GROUP_COMMIT;
+    }
+
+    @Override
+    public String toString() {
+      return kind + (kind == Kind.NONE || kind == Kind.SYNC ? "" : "(" + maxBatch + ", " + nanos + "ns)");
+    }
+  }
+
   /**
    * Encode a key/value (here you must handle null values) into a ByteBuffer.
    * @param <KK> key type
@@ -106,316 +233,4918 @@ public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentMa
     Entry<KK, VV> decode(byte[] bArray) throws IOException;
   }
 
-  private final CRC32 digest;
-  private final Comparator<K> comp;
-  private final FileChannel fc;
-  private final ConcurrentSkipListMap<K, Long> map;
-  private final ByteBuffer lenBuffer = ByteBuffer.allocate(4);
-  private final ByteBuffer digestBuffer = ByteBuffer.allocate(4);
-  private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(1024 * 1024);
-  private final File file;
-  private long currentWritePos = HDR.length;
-  private long nextWritePos = HDR.length;
-  private volatile int pendingWrites = 0;
-  private final Encoder<K, V> encoder;
-  private final Decoder<K, V> decoder;
-  private long entriesOnDisk = 0;
+  /**
+   * Turn a key alone to and from bytes; used for hint files.
+   * @param <KK> key type
+   */
+  public interface KeyCodec<KK> {
+    byte[] encodeKey(KK k) throws IOException;
+
+    KK decodeKey(byte[] bArray) throws IOException;
+  }
 
   /**
-   * Default java serialization. Good enough.
+   * Write a value straight into a buffer, and read it back from one. Encodings
+   * must be self delimiting: decode() consumes exactly the bytes encode() wrote,
+   * which is what lets a record's key be read without touching its value. Used
+   * in pairs through Config.codecs(); a few common ones are built in.
+   * @param <T> type
    */
-  @SuppressWarnings("rawtypes")
-  public static Encoder ENCODE_JAVA_SER = (k, v) -> {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream(8 * 1024);
-    ObjectOutputStream oos = new ObjectOutputStream(baos);
-    oos.writeUnshared(k);
-    oos.writeUnshared(v);
-    oos.flush();
-    byte[] arr = baos.toByteArray();
-    return ByteBuffer.wrap(arr);
-  };
+  public interface Codec<T> {
+    /**
+     * Exact count of bytes encode() will write for t.
+     * @param t value, never null
+     * @return byte count
+     */
+    int size(T t);
+
+    /**
+     * Write t at the buffer's position, advancing it by size(t).
+     * @param t value, never null
+     * @param dest destination
+     */
+    void encode(T t, ByteBuffer dest);
+
+    /**
+     * Read a value at the buffer's position, advancing past it.
+     * @param src source
+     * @return value
+     */
+    T decode(ByteBuffer src);
+
+    /**
+     * Strings, as an int length and UTF-8 bytes.
+     */
+    Codec<String> STRING = new Codec<String>() {
+      @Override
+      public int size(String s) {
+        return Integer.BYTES + utf8Length(s);
+      }
+
+      @Override
+      public void encode(String s, ByteBuffer dest) {
+        dest.putInt(utf8Length(s));
+        for (int i = 0; i < s.length(); i++) {
+          int c = s.charAt(i);
+          if (c < 0x80) {
+            dest.put((byte) c);
+          } else if (c < 0x800) {
+            dest.put((byte) (0xc0 | (c >> 6))).put((byte) (0x80 | (c & 0x3f)));
+          } else if (Character.isHighSurrogate((char) c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint((char) c, s.charAt(++i));
+            dest.put((byte) (0xf0 | (cp >> 18))).put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+            dest.put((byte) (0x80 | ((cp >> 6) & 0x3f))).put((byte) (0x80 | (cp & 0x3f)));
+          } else if (Character.isSurrogate((char) c)) {
+            // unpaired, as String.getBytes() would have it
+            dest.put((byte) '?');
+          } else {
+            dest.put((byte) (0xe0 | (c >> 12))).put((byte) (0x80 | ((c >> 6) & 0x3f)));
+            dest.put((byte) (0x80 | (c & 0x3f)));
+          }
+        }
+      }
+
+      @Override
+      public String decode(ByteBuffer src) {
+        int len = src.getInt();
+        if (src.hasArray()) {
+          String ret = new String(src.array(), src.arrayOffset() + src.position(), len, StandardCharsets.UTF_8);
+          src.position(src.position() + len);
+          return ret;
+        }
+        byte[] b = new byte[len];
+        src.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+      }
+    };
+
+    /**
+     * Longs, as 8 bytes.
+     */
+    Codec<Long> LONG = new Codec<Long>() {
+      @Override
+      public int size(Long l) {
+        return Long.BYTES;
+      }
+
+      @Override
+      public void encode(Long l, ByteBuffer dest) {
+        dest.putLong(l);
+      }
+
+      @Override
+      public Long decode(ByteBuffer src) {
+        return src.getLong();
+      }
+    };
+
+    /**
+     * Integers, as 4 bytes.
+     */
+    Codec<Integer> INT = new Codec<Integer>() {
+      @Override
+      public int size(Integer i) {
+        return Integer.BYTES;
+      }
+
+      @Override
+      public void encode(Integer i, ByteBuffer dest) {
+        dest.putInt(i);
+      }
+
+      @Override
+      public Integer decode(ByteBuffer src) {
+        return src.getInt();
+      }
+    };
+
+    /**
+     * Byte arrays, as an int length and the bytes. Pair with a comparator; arrays
+     * have no natural order.
+     */
+    Codec<byte[]> BYTES = new Codec<byte[]>() {
+      @Override
+      public int size(byte[] b) {
+        return Integer.BYTES + b.length;
+      }
+
+      @Override
+      public void encode(byte[] b, ByteBuffer dest) {
+        dest.putInt(b.length).put(b);
+      }
+
+      @Override
+      public byte[] decode(ByteBuffer src) {
+        byte[] b = new byte[src.getInt()];
+        src.get(b);
+        return b;
+      }
+    };
+
+    /**
+     * Composite keys: a list with one element per part, each in its own codec,
+     * back to back. Order them with compositeOrder(), or a comparator of your own.
+     * @param parts codec for each element, in order
+     * @return codec
+     */
+    @SuppressWarnings("unchecked")
+    static Codec<List<Object>> composite(Codec<?>... parts) {
+      Codec<Object>[] cs = (Codec<Object>[]) parts.clone();
+      return new Codec<List<Object>>() {
+        @Override
+        public int size(List<Object> l) {
+          check(l);
+          int ret = 0;
+          for (int i = 0; i < cs.length; i++) {
+            ret += cs[i].size(l.get(i));
+          }
+          return ret;
+        }
+
+        @Override
+        public void encode(List<Object> l, ByteBuffer dest) {
+          check(l);
+          for (int i = 0; i < cs.length; i++) {
+            cs[i].encode(l.get(i), dest);
+          }
+        }
+
+        @Override
+        public List<Object> decode(ByteBuffer src) {
+          Object[] ret = new Object[cs.length];
+          for (int i = 0; i < cs.length; i++) {
+            ret[i] = cs[i].decode(src);
+          }
+          return Arrays.asList(ret);
+        }
+
+        private void check(List<Object> l) {
+          if (l.size() != cs.length) {
+            throw new IllegalArgumentException("Expected " + cs.length + " parts: " + l);
+          }
+        }
+      };
+    }
+
+    /**
+     * Element by element natural order, for composite keys of Comparable parts.
+     * @return comparator
+     */
+    @SuppressWarnings( { "unchecked", "rawtypes" })
+    static Comparator<List<Object>> compositeOrder() {
+      return (a, b) -> {
+        int n = Math.min(a.size(), b.size());
+        for (int i = 0; i < n; i++) {
+          int c = ((Comparable) a.get(i)).compareTo(b.get(i));
+          if (c != 0) {
+            return c;
+          }
+        }
+        return Integer.compare(a.size(), b.size());
+      };
+    }
+
+    /**
+     * Bytes needed to hold s as UTF-8.
+     * @param s string
+     * @return byte count
+     */
+    static int utf8Length(String s) {
+      int ret = 0;
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        if (c < 0x80) {
+          ret++;
+        } else if (c < 0x800) {
+          ret += 2;
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+          ret += 4;
+          i++;
+        } else if (Character.isSurrogate(c)) {
+          ret++;
+        } else {
+          ret += 3;
+        }
+      }
+      return ret;
+    }
+  }
+
+  // addresses are (segment id, offset) pairs packed into a long
+  private static final int SEGMENT_SHIFT = 40;
+  private static final long OFFSET_MASK = (1L << SEGMENT_SHIFT) - 1;
+  private static final String MANIFEST = "MANIFEST";
+  private static final int MAP_WINDOW = 64 * 1024 * 1024;
+  private static final int READ_AHEAD = 256;
+  // the length word's top bits are flags; a batch header starts a WriteBatch
+  private static final int LEN_MASK = 0x1fffffff;
+  private static final int BATCH_FLAG = 0x80000000;
+  // a deflated record's payload is [int raw length][deflate stream]
+  private static final int ZIP_FLAG = 0x40000000;
+  // an expiring record's payload starts with [long expiry millis], ahead of any compression
+  private static final int TTL_FLAG = 0x20000000;
+  private static final int MIN_DEFLATE = 64;
+  // how many deflaters, and inflaters, a map keeps for reuse; extras are ended after use
+  private static final int ZIP_POOL = Runtime.getRuntime().availableProcessors();
+  // a read view's mark for a key that was absent
+  private static final long NONE = -1L;
+  private static final int BATCH_HDR_SIZE = Integer.BYTES + Integer.BYTES + Long.BYTES + Integer.BYTES;
 
   /**
-   * Default java deserialization. Good enough.
+   * Construction time configuration. Fluent, nulls mean defaults.
+   * @param <KK> key type
+   * @param <VV> value type
    */
-  @SuppressWarnings( { "rawtypes" })
-  public static Decoder DECODE_JAVA_SER = (barr) -> {
-    ByteArrayInputStream bais = new ByteArrayInputStream(barr);
-    ObjectInputStream is = new ObjectInputStream(bais);
+  public static class Config<KK, VV> {
+    private Comparator<KK> comparator = null;
+    private Encoder<KK, VV> encoder = null;
+    private Decoder<KK, VV> decoder = null;
+    private long segmentSize = 0;
+    private boolean hints = false;
+    private KeyCodec<KK> keyCodec = null;
+    private boolean mmapReads = false;
+    private int mapWindow = MAP_WINDOW;
+    private Durability durability = Durability.NONE;
+    private int cacheEntries = 0;
+    private boolean compactIndex = false;
+    private int recoveryThreads = 0;
+    private long cacheBytes = 0;
+    private final Map<String, Function<? super VV, ?>> secondaries = new LinkedHashMap<>();
+    private Codec<KK> keys = null;
+    private Codec<VV> values = null;
+    private int compression = 0;
+    private byte[] dictionary = null;
+    private boolean crc32c = false;
+    private boolean verifyOnRead = false;
+    private long ttlMillis = 0;
+    private LongSupplier clock = System::currentTimeMillis;
+
+    /**
+     * Comparator to use. If null, Comparator.naturalOrder() is used.
+     * @param comparator comparator
+     * @return this config
+     */
+    public Config<KK, VV> comparator(Comparator<KK> comparator) {
+      this.comparator = comparator;
+      return this;
+    }
+
+    /**
+     * Encoder to use. If null, default Java serializer is used.
+     * @param encoder encoder
+     * @return this config
+     */
+    public Config<KK, VV> encoder(Encoder<KK, VV> encoder) {
+      this.encoder = encoder;
+      return this;
+    }
+
+    /**
+     * Decoder to use. If null, default Java deserializer is used.
+     * @param decoder decoder
+     * @return this config
+     */
+    public Config<KK, VV> decoder(Decoder<KK, VV> decoder) {
+      this.decoder = decoder;
+      return this;
+    }
+
+    /**
+     * Key and value codecs. If set, these take the place of the encoder and
+     * decoder: records are written straight into their buffers, decoded in place
+     * (from the mapped file, with mmapReads()), and a restart reads only the keys.
+     * Unless a keyCodec() is given, hints use the key codec too. A map's file must
+     * always be opened with the same encoding it was written with.
+     * @param keys key codec
+     * @param values value codec
+     * @return this config
+     */
+    public Config<KK, VV> codecs(Codec<KK> keys, Codec<VV> values) {
+      this.keys = Objects.requireNonNull(keys);
+      this.values = Objects.requireNonNull(values);
+      return this;
+    }
+
+    /**
+     * Deflate records as they are appended, at this level: 1 (fastest) to 9
+     * (smallest), or Deflater.DEFAULT_COMPRESSION. 0, the default, is off. Small
+     * records, and any that don't shrink, are stored as they are. The CRC covers
+     * the stored bytes, so damage is caught before inflating. Compressed records
+     * are flagged on disk, and read back whatever this is set to on open.
+     * @param level deflate level, 0 for none
+     * @return this config
+     */
+    public Config<KK, VV> compression(int level) {
+      if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+        throw new IllegalArgumentException("Bad compression level: " + level);
+      }
+      this.compression = level;
+      return this;
+    }
+
+    /**
+     * Preset dictionary for compression: sample bytes typical of your records,
+     * most common last, up to 32KB. Small records mostly repeat what other records
+     * hold, not themselves; priming each one's deflate stream with the dictionary
+     * gets them most of what sharing a compressed block would, while each stays
+     * readable on its own. Must be the same every time the map is opened.
+     * @param dictionary dictionary bytes
+     * @return this config
+     */
+    public Config<KK, VV> compressionDictionary(byte[] dictionary) {
+      this.dictionary = (dictionary == null) ? null : dictionary.clone();
+      return this;
+    }
+
+    /**
+     * Checksum records with CRC32C rather than CRC32, for new maps. The log's
+     * header says which it uses, so an existing map keeps whichever it was made
+     * with, and compaction carries it over. java.util.zip.CRC32C is used where
+     * the JVM has it, else a table driven one.
+     * @param crc32c true for CRC32C
+     * @return this config
+     */
+    public Config<KK, VV> crc32c(boolean crc32c) {
+      this.crc32c = crc32c;
+      return this;
+    }
+
+    /**
+     * Check each record's checksum when reading a value, not just on restart,
+     * so a damaged record fails the read with an IOException (or
+     * RuntimeIOException from the Map methods) instead of decoding garbage.
+     * Costs one checksum pass over the stored bytes per uncached read.
+     * @param verifyOnRead true to verify
+     * @return this config
+     */
+    public Config<KK, VV> verifyOnRead(boolean verifyOnRead) {
+      this.verifyOnRead = verifyOnRead;
+      return this;
+    }
+
+    /**
+     * Segmented layout. If greater than zero, the map's file is a directory
+     * holding segment files of roughly this many bytes, plus a manifest listing
+     * them in log order. Zero (the default) is the single file layout.
+     * @param segmentSize max bytes per segment file
+     * @return this config
+     */
+    public Config<KK, VV> segmentSize(long segmentSize) {
+      this.segmentSize = segmentSize;
+      return this;
+    }
+
+    /**
+     * Write hint files, so restart can load the index without reading every
+     * record. Hints are written when a segment is sealed, and at close(); a restart
+     * loads the hints, then scans only what was written after the last one. A
+     * missing or damaged hint falls back to a full scan.
+     * @param hints true to write hints
+     * @return this config
+     */
+    public Config<KK, VV> hints(boolean hints) {
+      this.hints = hints;
+      return this;
+    }
+
+    /**
+     * Key codec used for hint files. If null, Java serialization is used.
+     * @param keyCodec codec
+     * @return this config
+     */
+    public Config<KK, VV> keyCodec(KeyCodec<KK> keyCodec) {
+      this.keyCodec = keyCodec;
+      return this;
+    }
+
+    /**
+     * Serve reads from read only memory maps of the log, rather than a pair of
+     * positional reads per get. Sealed segments are mapped whole; the file being
+     * appended to is mapped in 64MB windows as each one fills. Anything not mapped
+     * yet is read from the channel as usual.
+     * @param mmapReads true to map
+     * @return this config
+     */
+    public Config<KK, VV> mmapReads(boolean mmapReads) {
+      this.mmapReads = mmapReads;
+      return this;
+    }
+
+    // smaller map windows, so tests reach them
+    Config<KK, VV> mapWindow(int mapWindow) {
+      this.mapWindow = mapWindow;
+      return this;
+    }
+
+    /**
+     * When writes are forced to disk; Durability.NONE by default.
+     * @param durability policy
+     * @return this config
+     */
+    public Config<KK, VV> durability(Durability durability) {
+      this.durability = Objects.requireNonNull(durability);
+      return this;
+    }
+
+    /**
+     * Hold the index as encoded key bytes and primitive addresses in sorted
+     * arrays, with a small skip list of recent changes merged in now and again,
+     * rather than as a skip list of key objects and boxed addresses. Much less
+     * heap, and far fewer objects for the GC, per key; lookups instead decode
+     * O(log n) keys, so pair it with a cheap keyCodec(). With neither that nor
+     * a key codec, Integer, Long and String keys get a compact encoding in the
+     * index (hints still use java serialization). Merges run in the background.
+     * @param compactIndex true for the compact index
+     * @return this config
+     */
+    public Config<KK, VV> compactIndex(boolean compactIndex) {
+      this.compactIndex = compactIndex;
+      return this;
+    }
+
+    /**
+     * Recover on restart with this many threads: one pass finds record boundaries
+     * from the lengths, then a ForkJoin pool checks CRCs and decodes in chunks,
+     * and the results are indexed in log order. 0 or 1 for the plain scan.
+     * @param recoveryThreads thread count
+     * @return this config
+     */
+    public Config<KK, VV> recoveryThreads(int recoveryThreads) {
+      this.recoveryThreads = recoveryThreads;
+      return this;
+    }
+
+    /**
+     * Keep up to this many decoded values in a cache in front of the file,
+     * evicting the least recently used, roughly (CLOCK). Can be combined with
+     * cacheBytes(); whichever limit is hit first evicts. A hit hands back the
+     * same decoded instance to every caller rather than a fresh copy, so treat
+     * values as read only: a byte[] or List changed by one caller is what later
+     * gets see.
+     * @param cacheEntries entry limit, 0 for none
+     * @return this config
+     */
+    public Config<KK, VV> cacheEntries(int cacheEntries) {
+      this.cacheEntries = cacheEntries;
+      return this;
+    }
+
+    /**
+     * Keep decoded values in a cache, up to this many bytes of records, as
+     * sized on disk. Can be combined with cacheEntries(). The same instance is
+     * shared between hits, as with cacheEntries().
+     * @param cacheBytes byte limit, 0 for none
+     * @return this config
+     */
+    public Config<KK, VV> cacheBytes(long cacheBytes) {
+      this.cacheBytes = cacheBytes;
+      return this;
+    }
+
+    /**
+     * Add a secondary index: each value is filed under attribute(value), and
+     * lookup() / lookupKeys() find the keys with a given attribute without a
+     * scan. Attributes need sane equals() and hashCode(); a null attribute
+     * leaves the value out of the index. The function runs on the writer's
+     * thread as the record is encoded, before the lock is taken; if it throws,
+     * the write fails and nothing is written. Indexes live in memory, are kept
+     * in step under the same lock as the primary index, and are rebuilt from
+     * the values on open.
+     * @param name index name
+     * @param attribute function of the value
+     * @return this config
+     */
+    public Config<KK, VV> secondaryIndex(String name, Function<? super VV, ?> attribute) {
+      secondaries.put(Objects.requireNonNull(name), Objects.requireNonNull(attribute));
+      return this;
+    }
+
+    /**
+     * Default time to live for values set without one; 0, the default, means they
+     * never expire. Expiry is stored in each record, so it survives a restart.
+     * @param ttl time to live, 0 for none
+     * @param units units for ttl
+     * @return this config
+     */
+    public Config<KK, VV> timeToLive(long ttl, TimeUnit units) {
+      if (ttl < 0) {
+        throw new IllegalArgumentException("Negative time to live: " + ttl);
+      }
+      this.ttlMillis = units.toMillis(ttl);
+      return this;
+    }
+
+    // a clock for expiry, so tests can move time along
+    Config<KK, VV> clock(LongSupplier clock) {
+      this.clock = clock;
+      return this;
+    }
+
+    /**
+     * Open a map with this configuration.
+     * @param file File to use; a directory if the config asks for segments.
+     * @param open Open mode
+     * @return new map
+     * @throws IOException on exception
+     */
+    public ChiseledMap<KK, VV> open(File file, OpenOption open) throws IOException {
+      return new ChiseledMap<>(file, open, this);
+    }
+  }
+
+  /**
+   * CRC32C (Castagnoli), a table at a time, for JVMs without java.util.zip.CRC32C.
+   */
+  private static class Crc32c implements Checksum {
+    private static final int[] TABLE = new int[256];
+
+    static {
+      for (int i = 0; i < TABLE.length; i++) {
+        int c = i;
+        for (int k = 0; k < 8; k++) {
+          c = ((c & 1) != 0) ? (c >>> 1) ^ 0x82f63b78 : c >>> 1;
+        }
+        TABLE[i] = c;
+      }
+    }
+
+    private int crc = 0xffffffff;
+
+    @Override
+    public void update(int b) {
+      crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xff];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+      int c = crc;
+      for (int i = off; i < off + len; i++) {
+        c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xff];
+      }
+      crc = c;
+    }
+
+    @Override
+    public long getValue() {
+      return ~crc & 0xffffffffL;
+    }
+
+    @Override
+    public void reset() {
+      crc = 0xffffffff;
+    }
+  }
+
+  // the JDK's CRC32C (9+) if there is one, and Checksum.update(ByteBuffer) to feed it mapped bytes
+  private static final Supplier<Checksum> CRC32C = crc32cMaker();
+  private static final MethodHandle UPDATE_BUFFER = bufferUpdater();
+
+  private static Supplier<Checksum> crc32cMaker() {
     try {
-      Object k = is.readObject();
-      Object v = is.readObject();
-      return new SimpleImmutableEntry<>(k, v);
-    } catch (ClassNotFoundException e) {
-      throw new IOException(e);
+      Constructor<? extends Checksum> cons = Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class)
+        .getConstructor();
+      cons.newInstance();
+      return () -> {
+        try {
+          return cons.newInstance();
+        } catch (ReflectiveOperationException e) {
+          return new Crc32c();
+        }
+      };
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return Crc32c::new;
     }
-  };
+  }
 
-  public ChiseledMap(File file, OpenOption open, Comparator<K> comp) throws IOException {
-    this(file, open, comp, null, null);
+  private static MethodHandle bufferUpdater() {
+    try {
+      return MethodHandles.publicLookup()
+        .findVirtual(Checksum.class, "update", MethodType.methodType(void.class, ByteBuffer.class));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
   }
 
   /**
-   * Constructor. Create a TinyKVMap.
-   * @param file File to use.
-   * @param open Open mode
-   * @param comp Comparator to use. If null, Comparator.naturalOrder() is used.
-   * @param encoder Encoder to use. If null, default Java serializer is used.
-   * @param decoder Decoder to use. If null, default Java deserializer is used.
-   * @throws IOException on exception
+   * One file's worth of log. In the single file layout compaction writes a new
+   * one, then retires the old one; in the segmented layout the log is an ordered
+   * list of these. The id lets readers holding a stale address notice.
    */
-  @SuppressWarnings( { "raw", "unchecked" })
-  public ChiseledMap(File file,
-                     OpenOption open,
-                     Comparator<K> comp,
-                     Encoder<K, V> encoder,
-                     Decoder<K, V> decoder) throws IOException {
-    Objects.requireNonNull(file);
-    this.encoder = (encoder == null) ? ENCODE_JAVA_SER : encoder;
-    this.decoder = (decoder == null) ? DECODE_JAVA_SER : decoder;
-    this.comp = (comp == null) ? (a, b) -> ((Comparable<K>) a).compareTo(b) : comp;
-    this.map = new ConcurrentSkipListMap<>(this.comp);
-    this.file = file;
-    this.digest = new CRC32();
-    switch (open) {
-      case MUST_BE_NEW:
-        this.fc = FileChannel.open(file.toPath(), CREATE_NEW, READ, WRITE);
-        break;
-      case MUST_EXIST:
-        this.fc = FileChannel.open(file.toPath(), READ, WRITE);
-        break;
-      default:
-        this.fc = FileChannel.open(file.toPath(), CREATE, READ, WRITE);
-        break;
+  private static class Segment {
+    private final int id;
+    private File file;
+    private final FileChannel fc;
+    private long end = HDR.length;
+    private long dead = 0;
+    private long entries = 0;
+    // every record appended, while it is the active segment and hints are on
+    private List<HintRec<?>> log = null;
+    private volatile MappedByteBuffer[] windows = new MappedByteBuffer[0];
+
+    Segment(int id, File file, FileChannel fc) {
+      this.id = id;
+      this.file = file;
+      this.fc = fc;
     }
-    if (fc.size() > 0) {
-      verifyHeader();
-    } else {
-      writeHeader();
+  }
+
+  /**
+   * One hint file entry; a record's key, where it is, how big, and if it is a removal.
+   */
+  private static class HintRec<KK> {
+    private final KK key;
+    private final long offset;
+    private final int size;
+    private final boolean tomb;
+    private final long expires;
+
+    HintRec(KK key, long offset, int size, boolean tomb, long expires) {
+      this.key = key;
+      this.offset = offset;
+      this.size = size;
+      this.tomb = tomb;
+      this.expires = expires;
     }
-    rebuild(fc);
   }
 
-  private void verifyHeader() throws IOException {
-    ByteBuffer p = ByteBuffer.allocate(HDR.length);
-    readFully(0, p);
-    p.clear();
-    if (p.compareTo(ByteBuffer.wrap(HDR)) != 0) {
-      throw new IOException("File Header Mismatch!");
+  /**
+   * The in memory index, key to address. Reads may come from any thread;
+   * writes come under the map's monitor, except compaction's replace().
+   * Iteration is in key order.
+   */
+  private interface Index<KK> extends Iterable<Entry<KK, Long>> {
+    Long get(Object key);
+
+    Long put(KK key, long addr);
+
+    Long remove(Object key);
+
+    boolean replace(KK key, long from, long to);
+
+    int size();
+
+    void clear();
+
+    /**
+     * Entries between lo and hi, either of which may be null for unbounded, in
+     * key order or reverse key order. Empty if lo is above hi.
+     */
+    Iterator<Entry<KK, Long>> range(KK lo, boolean loInc, KK hi, boolean hiInc, boolean descending);
+
+    default Iterator<Entry<KK, Long>> iterator() {
+      return range(null, false, null, false, false);
     }
   }
 
-  private void writeHeader() throws IOException {
-    // write at the beginning, then leave position alone
-    fc.position(0);
-    writeFully(ByteBuffer.wrap(HDR), 0);
+  private static <KK> NavigableMap<KK, Long> slice(ConcurrentSkipListMap<KK, Long> m, KK lo, boolean loInc, KK hi,
+                                                   boolean hiInc, boolean descending) {
+    // the part of a skip list in range, in the order asked for; callers check lo <= hi
+    NavigableMap<KK, Long> ret = m;
+    if (lo != null && hi != null) {
+      ret = m.subMap(lo, loInc, hi, hiInc);
+    } else if (lo != null) {
+      ret = m.tailMap(lo, loInc);
+    } else if (hi != null) {
+      ret = m.headMap(hi, hiInc);
+    }
+    return descending ? ret.descendingMap() : ret;
   }
 
-  private void rebuild(FileChannel fc) throws IOException {
-    // scan the entire file, loading each entry where crc matches.
-    currentWritePos = HDR.length;
-    long[] nextPos = new long[1];
-    for (; ; ) {
-      try {
-        Entry<K, V> got = fetch(currentWritePos, true, nextPos);
-        map.put(got.getKey(), currentWritePos);
-        currentWritePos = nextPos[0];
-        entriesOnDisk++;
-      } catch (Exception e) {
-        // truncate to end of last known good block.
-        nextWritePos = currentWritePos;
-        fc.truncate(currentWritePos);
-        break;
-      }
+  private static class SkipListIndex<KK> implements Index<KK> {
+    private final ConcurrentSkipListMap<KK, Long> map;
+
+    SkipListIndex(Comparator<KK> comp) {
+      this.map = new ConcurrentSkipListMap<>(comp);
+    }
+
+    public Long get(Object key) {
+      return map.get(key);
+    }
+
+    public Long put(KK key, long addr) {
+      return map.put(key, addr);
+    }
+
+    public Long remove(Object key) {
+      return map.remove(key);
     }
+
+    public boolean replace(KK key, long from, long to) {
+      return map.replace(key, from, to);
+    }
+
+    public int size() {
+      return map.size();
+    }
+
+    public void clear() {
+      map.clear();
+    }
+
+    public Iterator<Entry<KK, Long>> range(KK lo, boolean loInc, KK hi, boolean hiInc, boolean descending) {
+      if (lo != null && hi != null && map.comparator().compare(lo, hi) > 0) {
+        return Collections.emptyIterator();
+      }
+      return slice(map, lo, loInc, hi, hiInc, descending).entrySet().iterator();
+    }
+  }
+
+  /**
+   * Sorted run of encoded keys (in pages of bytes, addressed by long pointers)
+   * and addresses, immutable once built. Recent changes sit in a skip list
+   * delta, with GONE marking removal of a run entry; past a size the delta is
+   * merged into a new run on a thread of its own, off the writers' lock.
+   * Readers check the delta then the run; the merge publishes the new run
+   * before dropping the merged delta entries, so a reader never misses both.
+   */
+  private static class CompactIndex<KK> implements Index<KK> {
+    private static final long GONE = -1L;
+    private static final int MIN_MERGE = 1024;
+    private static final int PAGE = 1 << 20;
+    private final Comparator<KK> comp;
+    private final KeyCodec<KK> codec;
+    private final ConcurrentSkipListMap<KK, Long> delta;
+    private volatile Run run = new RunBuilder(0).build();
+    private volatile int size = 0;
+    private volatile boolean merging = false;
+    private int generation = 0;
+
+    private static class Run {
+      private final byte[][] pages;
+      private final long[] ptrs;
+      private final long[] addrs;
+
+      Run(byte[][] pages, long[] ptrs, long[] addrs) {
+        this.pages = pages;
+        this.ptrs = ptrs;
+        this.addrs = addrs;
+      }
+
+      int count() {
+        return addrs.length;
+      }
+
+      int page(int i) {
+        return (int) (ptrs[i] >>> 32);
+      }
+
+      int offset(int i) {
+        return (int) ptrs[i];
+      }
+
+      int length(int i) {
+        // keys sit back to back within a page; the last one runs to its end
+        int p = page(i);
+        return (i + 1 < count() && page(i + 1) == p) ? offset(i + 1) - offset(i) : pages[p].length - offset(i);
+      }
+
+      byte[] keyBytes(int i) {
+        return Arrays.copyOfRange(pages[page(i)], offset(i), offset(i) + length(i));
+      }
+    }
+
+    private static class RunBuilder {
+      private final List<byte[]> pages = new ArrayList<>();
+      private final long[] ptrs;
+      private final long[] addrs;
+      private byte[] page = null;
+      private int used = 0;
+      private int n = 0;
+
+      RunBuilder(int max) {
+        this.ptrs = new long[max];
+        this.addrs = new long[max];
+      }
+
+      void add(byte[] b, int off, int len, long addr) {
+        if (page == null || used + len > page.length) {
+          seal();
+          page = new byte[Math.max(PAGE, len)];
+        }
+        System.arraycopy(b, off, page, used, len);
+        ptrs[n] = ((long) pages.size() << 32) | used;
+        addrs[n++] = addr;
+        used = used + len;
+      }
+
+      void copy(Run r, int from, int to) {
+        for (int i = from; i < to; i++) {
+          add(r.pages[r.page(i)], r.offset(i), r.length(i), r.addrs[i]);
+        }
+      }
+
+      private void seal() {
+        if (page != null) {
+          pages.add(Arrays.copyOf(page, used));
+          page = null;
+          used = 0;
+        }
+      }
+
+      Run build() {
+        seal();
+        return new Run(pages.toArray(new byte[0][]), Arrays.copyOf(ptrs, n), Arrays.copyOf(addrs, n));
+      }
+    }
+
+    CompactIndex(Comparator<KK> comp, KeyCodec<KK> codec) {
+      this.comp = comp;
+      this.codec = codec;
+      this.delta = new ConcurrentSkipListMap<>(comp);
+    }
+
+    private KK keyAt(Run r, int i) {
+      try {
+        return codec.decodeKey(r.keyBytes(i));
+      } catch (IOException e) {
+        throw new RuntimeIOException(e);
+      }
+    }
+
+    private int find(Run r, Object key) {
+      return search(r, 0, r.count() - 1, key);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int search(Run r, int lo, int hi, Object key) {
+      // binary search, decoding as we go
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        int c = comp.compare(keyAt(r, mid), (KK) key);
+        if (c < 0) {
+          lo = mid + 1;
+        } else if (c > 0) {
+          hi = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -(lo + 1);
+    }
+
+    private int seek(Run r, int from, KK key) {
+      // gallop from 'from' in doubling steps, then search the last step
+      int lo = from;
+      int hi = from;
+      int step = 1;
+      while (hi < r.count() && comp.compare(keyAt(r, hi), key) < 0) {
+        lo = hi + 1;
+        hi = (int) Math.min((long) hi + step, r.count());
+        step <<= 1;
+      }
+      return search(r, lo, Math.min(hi, r.count() - 1), key);
+    }
+
+    public Long get(Object key) {
+      Long d = delta.get(key);
+      if (d != null) {
+        return (d == GONE) ? null : d;
+      }
+      Run r = run;
+      int i = find(r, key);
+      return (i < 0) ? null : r.addrs[i];
+    }
+
+    public synchronized Long put(KK key, long addr) {
+      Long prior = get(key);
+      delta.put(key, addr);
+      if (prior == null) {
+        size++;
+      }
+      if (!merging && delta.size() > Math.max(MIN_MERGE, run.count() >> 3)) {
+        startMerge();
+      }
+      return prior;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized Long remove(Object key) {
+      Long prior = get(key);
+      if (prior != null) {
+        // mid merge the key may be headed for the new run, so mark it gone too
+        if (merging || find(run, key) >= 0) {
+          delta.put((KK) key, GONE);
+        } else {
+          delta.remove(key);
+        }
+        size--;
+      }
+      return prior;
+    }
+
+    public synchronized boolean replace(KK key, long from, long to) {
+      Long cur = get(key);
+      if (cur == null || cur != from) {
+        return false;
+      }
+      delta.put(key, to);
+      return true;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public synchronized void clear() {
+      generation++;
+      merging = false;
+      run = new RunBuilder(0).build();
+      delta.clear();
+      size = 0;
+    }
+
+    private void startMerge() {
+      // snapshot the run and delta under the lock; the merge itself runs outside it
+      merging = true;
+      Run r = run;
+      List<Entry<KK, Long>> changes = new ArrayList<>(delta.entrySet());
+      int gen = generation;
+      Thread t = new Thread(() -> merge(r, changes, gen), "ChiseledMap index merge");
+      t.setDaemon(true);
+      t.start();
+    }
+
+    private void merge(Run r, List<Entry<KK, Long>> changes, int gen) {
+      Run next = null;
+      try {
+        next = merged(r, changes);
+      } catch (RuntimeException e) {
+        // the delta still holds it all; a later put tries again
+      }
+      synchronized (this) {
+        if (gen != generation) {
+          return;
+        }
+        if (next == null) {
+          merging = false;
+          return;
+        }
+        run = next;
+      }
+      // changes since the snapshot differ in value, so they stay put
+      for (Entry<KK, Long> ch : changes) {
+        delta.remove(ch.getKey(), ch.getValue());
+      }
+      synchronized (this) {
+        if (gen == generation) {
+          merging = false;
+        }
+      }
+    }
+
+    private Run merged(Run r, List<Entry<KK, Long>> changes) {
+      // fold the changes into a new run, copying the old run's key bytes as is;
+      // galloping to each change decodes O(d log(n/d)) run keys, not all n
+      RunBuilder b = new RunBuilder(r.count() + changes.size());
+      int i = 0;
+      try {
+        for (Entry<KK, Long> ch : changes) {
+          int j = seek(r, i, ch.getKey());
+          int at = (j < 0) ? -(j + 1) : j;
+          b.copy(r, i, at);
+          i = (j < 0) ? at : at + 1;
+          if (ch.getValue() != GONE) {
+            byte[] k = codec.encodeKey(ch.getKey());
+            b.add(k, 0, k.length, ch.getValue());
+          }
+        }
+      } catch (IOException e) {
+        throw new RuntimeIOException(e);
+      }
+      b.copy(r, i, r.count());
+      return b.build();
+    }
+
+    private int bound(Run r, KK key, boolean after) {
+      // first run index with a key above key if after, else at or above it
+      int i = find(r, key);
+      if (i < 0) {
+        return -(i + 1);
+      }
+      return after ? i + 1 : i;
+    }
+
+    public Iterator<Entry<KK, Long>> range(KK lo, boolean loInc, KK hi, boolean hiInc, boolean descending) {
+      // merge of a run slice and a copy of the delta slice, both snapshots
+      if (lo != null && hi != null && comp.compare(lo, hi) > 0) {
+        return Collections.emptyIterator();
+      }
+      Run r = run;
+      int from = (lo == null) ? 0 : bound(r, lo, !loInc);
+      int to = (hi == null) ? r.count() : bound(r, hi, hiInc);
+      Iterator<Entry<KK, Long>> changes = new ArrayList<>(
+        slice(delta, lo, loInc, hi, hiInc, descending).entrySet()).iterator();
+      Comparator<KK> order = descending ? comp.reversed() : comp;
+      return new Iterator<Entry<KK, Long>>() {
+        private int i = descending ? to - 1 : from;
+        private Entry<KK, Long> ch = changes.hasNext() ? changes.next() : null;
+        private Entry<KK, Long> next = advance();
+
+        private Entry<KK, Long> advance() {
+          for (; ; ) {
+            boolean more = descending ? i >= from : i < to;
+            KK rk = more ? keyAt(r, i) : null;
+            if (ch == null) {
+              return (rk == null) ? null : take(rk);
+            }
+            int c = (rk == null) ? 1 : order.compare(rk, ch.getKey());
+            if (c < 0) {
+              return take(rk);
+            }
+            if (c == 0) {
+              i = descending ? i - 1 : i + 1;
+            }
+            Entry<KK, Long> ret = ch;
+            ch = changes.hasNext() ? changes.next() : null;
+            if (ret.getValue() != GONE) {
+              return ret;
+            }
+          }
+        }
+
+        private Entry<KK, Long> take(KK rk) {
+          Entry<KK, Long> ret = new SimpleImmutableEntry<>(rk, r.addrs[i]);
+          i = descending ? i - 1 : i + 1;
+          return ret;
+        }
+
+        @Override
+        public boolean hasNext() {
+          return next != null;
+        }
+
+        @Override
+        public Entry<KK, Long> next() {
+          if (next == null) {
+            throw new NoSuchElementException();
+          }
+          Entry<KK, Long> ret = next;
+          next = advance();
+          return ret;
+        }
+      };
+    }
+  }
+
+  /**
+   * A group of sets and removals, encoded as they are added, then appended to the
+   * log together and applied to the index at once. After a crash, restart sees
+   * all of a batch or none of it. Build and commit from one thread; a committed
+   * batch is empty, ready for reuse.
+   */
+  public final class WriteBatch {
+    private final List<K> keys = new ArrayList<>();
+    private final List<ByteBuffer> recs = new ArrayList<>();
+    private final List<V> values = new ArrayList<>();
+    private final List<Object[]> attrs = new ArrayList<>();
+    private long bytes = 0;
+
+    private WriteBatch() {
+    }
+
+    private WriteBatch add(K key, ByteBuffer rec, V v) {
+      attrs.add(attributes(v));
+      keys.add(key);
+      recs.add(rec);
+      values.add(v);
+      bytes = bytes + rec.remaining();
+      return this;
+    }
+
+    /**
+     * Associate a key to a value, when committed.
+     * @param key key value
+     * @param v value -- cannot be null.
+     * @return this batch
+     * @throws IOException on encoding exception
+     */
+    public WriteBatch set(K key, V v) throws IOException {
+      Objects.requireNonNull(v);
+      return add(key, frame(key, v), v);
+    }
+
+    /**
+     * Associate a key to a value that expires after ttl, when committed.
+     * @param key key value
+     * @param v value -- cannot be null.
+     * @param ttl time to live, from now
+     * @param units units for ttl
+     * @return this batch
+     * @throws IOException on encoding exception
+     */
+    public WriteBatch set(K key, V v, long ttl, TimeUnit units) throws IOException {
+      Objects.requireNonNull(v);
+      return add(key, frame(key, v, expiry(ttl, units)), v);
+    }
+
+    /**
+     * Clear a key, when committed.
+     * @param key key value
+     * @return this batch
+     * @throws IOException on encoding exception
+     */
+    public WriteBatch unset(K key) throws IOException {
+      return add(key, frame(key, null), null);
+    }
+
+    /**
+     * Number of changes in the batch.
+     * @return change count
+     */
+    public int size() {
+      return keys.size();
+    }
+
+    /**
+     * Write and apply the whole batch, then empty it.
+     * @throws IOException on exception
+     */
+    public void commit() throws IOException {
+      apply(this);
+      keys.clear();
+      recs.clear();
+      values.clear();
+      attrs.clear();
+      bytes = 0;
+    }
+  }
+
+  /**
+   * A read only view of the map as it stood at one log position. Gets and scans
+   * see exactly the entries live then, however long they take, while writers
+   * carry on. Each change since the view opened first notes the key's address
+   * as of the view, so the view reads the older record; compaction waits until
+   * every open view is closed, so those records stay where they are. Entries
+   * that had expired by the time the view opened are left out, ones that expired
+   * later are not. Close it when done.
+   */
+  public final class ReadView implements AutoCloseable {
+    private final long position;
+    private final long millis;
+    // keys changed since the view opened: { address then or NONE, expiry then }
+    private final ConcurrentSkipListMap<K, long[]> before = new ConcurrentSkipListMap<>(comp);
+    private volatile boolean open = true;
+
+    private ReadView(long position, long millis) {
+      this.position = position;
+      this.millis = millis;
+    }
+
+    private void changing(K key, Long addr, long expires) {
+      // under the map's lock, before key's index entry changes; only the first change counts
+      before.putIfAbsent(key, new long[] { (addr == null) ? NONE : addr, expires });
+    }
+
+    /**
+     * Log position the view is as of, in the terms backupSince() takes.
+     * @return log position
+     */
+    public long position() {
+      return position;
+    }
+
+    /**
+     * Value for key as of the view.
+     * @param key key value
+     * @return value, or null if absent then
+     * @throws IOException on exception
+     */
+    public V ioGet(Object key) throws IOException {
+      Long addr = addressOf(key);
+      return (addr == null) ? null : valueAt(addr);
+    }
+
+    /**
+     * Unchecked version of ioGet()
+     * @param key key value
+     * @return value, or null if absent then
+     */
+    public V get(Object key) {
+      try {
+        return ioGet(key);
+      } catch (IOException e) {
+        throw new RuntimeIOException(e);
+      }
+    }
+
+    /**
+     * Whether key was present as of the view. Reads only the index.
+     * @param key key value
+     * @return true if present then
+     */
+    public boolean containsKey(Object key) {
+      return addressOf(key) != null;
+    }
+
+    /**
+     * Entries as of the view, in key order. Values are read a batch at a time in
+     * file order, like entries().
+     * @return entries
+     */
+    public Iterable<Entry<K, V>> entries() {
+      return entries(null, null);
+    }
+
+    /**
+     * Entries as of the view for a key range, in key order.
+     * @param from low key, inclusive, or null for unbounded
+     * @param to high key, exclusive, or null for unbounded
+     * @return entries
+     */
+    public Iterable<Entry<K, V>> entries(K from, K to) {
+      if (!open) {
+        throw new IllegalStateException("Read view is closed");
+      }
+      return () -> {
+        Iterator<Entry<K, V>> it = readAhead(index(from, to), e -> {
+          try {
+            return valueAt(e.getValue());
+          } catch (IOException ex) {
+            throw new RuntimeIOException(ex);
+          }
+        });
+        // read only
+        return new Iterator<Entry<K, V>>() {
+          @Override
+          public boolean hasNext() {
+            return it.hasNext();
+          }
+
+          @Override
+          public Entry<K, V> next() {
+            return it.next();
+          }
+        };
+      };
+    }
+
+    private Long addressOf(Object key) {
+      // index, then expiry, then changes, in that order: a change to key starts with the last
+      if (!open) {
+        throw new IllegalStateException("Read view is closed");
+      }
+      Long addr = map.get(key);
+      long expires = expiresAt(key);
+      long[] was = before.get(key);
+      if (was != null) {
+        addr = (was[0] == NONE) ? null : was[0];
+        expires = was[1];
+      }
+      return (addr == null || isExpired(expires, millis)) ? null : addr;
+    }
+
+    private Iterator<Entry<K, Long>> index(K from, K to) {
+      // the live index merged with the changed keys' addresses as of the view. The next
+      // changed key is looked up afresh after each live one: a key removed before the
+      // live iterator got to it was noted in before first, so it can't fall between.
+      Iterator<Entry<K, Long>> live = map.range(from, true, to, false, false);
+      return new Iterator<Entry<K, Long>>() {
+        private Entry<K, Long> l = null;
+        private K last = null;
+        private Entry<K, Long> next = null;
+
+        @Override
+        public boolean hasNext() {
+          while (next == null) {
+            if (l == null && live.hasNext()) {
+              l = live.next();
+            }
+            Entry<K, long[]> c;
+            if (last != null) {
+              c = before.higherEntry(last);
+            } else {
+              c = (from == null) ? before.firstEntry() : before.ceilingEntry(from);
+            }
+            if (c != null && to != null && comp.compare(c.getKey(), to) >= 0) {
+              c = null;
+            }
+            if (l == null && c == null) {
+              return false;
+            }
+            int cmp = (l == null) ? 1 : (c == null) ? -1 : comp.compare(l.getKey(), c.getKey());
+            K k;
+            long[] was;
+            if (cmp < 0) {
+              // unchanged, unless it changed since the changes were read
+              k = l.getKey();
+              long expires = expiresAt(k);
+              was = before.get(k);
+              if (was == null) {
+                was = new long[] { l.getValue(), expires };
+              }
+              l = null;
+            } else {
+              k = c.getKey();
+              was = c.getValue();
+              if (cmp == 0) {
+                l = null;
+              }
+            }
+            last = k;
+            if (was[0] != NONE && !isExpired(was[1], millis)) {
+              next = new SimpleImmutableEntry<>(k, was[0]);
+            }
+          }
+          return true;
+        }
+
+        @Override
+        public Entry<K, Long> next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          Entry<K, Long> ret = next;
+          next = null;
+          return ret;
+        }
+      };
+    }
+
+    /**
+     * Release the view; compaction can go ahead once no view or backup needs the
+     * old records.
+     */
+    @Override
+    public void close() {
+      synchronized (ChiseledMap.this) {
+        if (!open) {
+          return;
+        }
+        open = false;
+        views.remove(this);
+        before.clear();
+        unpin();
+      }
+    }
+  }
+
+  /**
+   * Point in time copy of a log2 histogram. Bucket 0 counts zeros; bucket i
+   * counts values in [2^(i-1), 2^i).
+   */
+  public static final class Histogram {
+    private final long[] buckets;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    private Histogram(long[] buckets, long sum, long max) {
+      this.buckets = buckets;
+      this.count = Arrays.stream(buckets).sum();
+      this.sum = sum;
+      this.max = max;
+    }
+
+    public long count() {
+      return count;
+    }
+
+    public long sum() {
+      return sum;
+    }
+
+    public long max() {
+      return max;
+    }
+
+    public double mean() {
+      return (count == 0) ? 0.0d : (double) sum / count;
+    }
+
+    /**
+     * Count in one bucket.
+     * @param i bucket, 0 to 64
+     * @return count
+     */
+    public long bucket(int i) {
+      return buckets[i];
+    }
+
+    /**
+     * Upper bound of the bucket holding the given fraction of values, capped at
+     * the largest value seen; within a factor of 2.
+     * @param fraction 0.0 to 1.0, e.g. 0.99
+     * @return value
+     */
+    public long percentile(double fraction) {
+      long want = (long) Math.ceil(fraction * count);
+      long seen = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        seen = seen + buckets[i];
+        if (seen >= want && seen > 0) {
+          return (i == 0) ? 0 : Math.min(max, (i == 64) ? Long.MAX_VALUE : (1L << i) - 1);
+        }
+      }
+      return max;
+    }
+
+    @Override
+    public String toString() {
+      return "count=" + count + " mean=" + (long) mean() + " p50=" + percentile(0.5d) + " p99=" + percentile(0.99d)
+             + " max=" + max;
+    }
+  }
+
+  /**
+   * The live side of a Histogram; striped adders, so recording is cheap and
+   * never blocks.
+   */
+  private static final class Recorder {
+    private final LongAdder[] buckets = new LongAdder[65];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    Recorder() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void record(long v) {
+      v = Math.max(v, 0);
+      buckets[64 - Long.numberOfLeadingZeros(v)].increment();
+      sum.add(v);
+      max.accumulate(v);
+    }
+
+    void since(long nanos) {
+      record(System.nanoTime() - nanos);
+    }
+
+    Histogram snapshot() {
+      long[] b = new long[buckets.length];
+      for (int i = 0; i < b.length; i++) {
+        b[i] = buckets[i].sum();
+      }
+      return new Histogram(b, sum.sum(), max.get());
+    }
+  }
+
+  /**
+   * Operational numbers for a map, as of a call to metrics(). Latencies are in
+   * nanoseconds, and cover the whole call, durability wait included. Everything
+   * counts from when the map was opened.
+   */
+  public static final class Metrics {
+    private final Histogram gets;
+    private final Histogram sets;
+    private final Histogram removes;
+    private final Histogram encodes;
+    private final Histogram flushes;
+    private final Histogram fsyncs;
+    private final long bytesAppended;
+    private final long bytesRead;
+    private final double deadRatio;
+    private final long indexSize;
+    private final long entriesOnDisk;
+    private final long logBytes;
+    private final long expired;
+
+    private Metrics(Histogram gets,
+                    Histogram sets,
+                    Histogram removes,
+                    Histogram encodes,
+                    Histogram flushes,
+                    Histogram fsyncs,
+                    long bytesAppended,
+                    long bytesRead,
+                    double deadRatio,
+                    long indexSize,
+                    long entriesOnDisk,
+                    long logBytes,
+                    long expired) {
+      this.gets = gets;
+      this.sets = sets;
+      this.removes = removes;
+      this.encodes = encodes;
+      this.flushes = flushes;
+      this.fsyncs = fsyncs;
+      this.bytesAppended = bytesAppended;
+      this.bytesRead = bytesRead;
+      this.deadRatio = deadRatio;
+      this.indexSize = indexSize;
+      this.entriesOnDisk = entriesOnDisk;
+      this.logBytes = logBytes;
+      this.expired = expired;
+    }
+
+    /**
+     * ioGet() latency, so get() too.
+     * @return histogram, nanos
+     */
+    public Histogram gets() {
+      return gets;
+    }
+
+    /**
+     * ioSet() and ioGetSet() latency, so set() and put() too.
+     * @return histogram, nanos
+     */
+    public Histogram sets() {
+      return sets;
+    }
+
+    /**
+     * ioUnset() latency, so remove() too.
+     * @return histogram, nanos
+     */
+    public Histogram removes() {
+      return removes;
+    }
+
+    /**
+     * Time to encode, compress and checksum a record, before taking the lock.
+     * @return histogram, nanos
+     */
+    public Histogram encodes() {
+      return encodes;
+    }
+
+    /**
+     * Write buffer flushes, by bytes written.
+     * @return histogram, bytes
+     */
+    public Histogram flushes() {
+      return flushes;
+    }
+
+    /**
+     * Every force of the log, whatever asked for it.
+     * @return histogram, nanos
+     */
+    public Histogram fsyncs() {
+      return fsyncs;
+    }
+
+    public long bytesAppended() {
+      return bytesAppended;
+    }
+
+    /**
+     * Bytes of records read to serve reads and restart; cache hits read nothing.
+     * @return bytes
+     */
+    public long bytesRead() {
+      return bytesRead;
+    }
+
+    public double deadRatio() {
+      return deadRatio;
+    }
+
+    public long indexSize() {
+      return indexSize;
+    }
+
+    public long entriesOnDisk() {
+      return entriesOnDisk;
+    }
+
+    /**
+     * Bytes in the log, written or still buffered.
+     * @return bytes
+     */
+    public long logBytes() {
+      return logBytes;
+    }
+
+    /**
+     * Entries dropped from the index on expiry, by the reaper or on touch.
+     * @return count
+     */
+    public long expired() {
+      return expired;
+    }
+
+    @Override
+    public String toString() {
+      return "gets: " + gets + "\nsets: " + sets + "\nremoves: " + removes + "\nencodes: " + encodes + "\nflushes: "
+             + flushes + "\nfsyncs: " + fsyncs + "\nbytesAppended=" + bytesAppended + " bytesRead=" + bytesRead
+             + " deadRatio=" + deadRatio + " indexSize=" + indexSize + " entriesOnDisk=" + entriesOnDisk
+             + " logBytes=" + logBytes + " expired=" + expired;
+    }
+  }
+
+  /**
+   * A secondary index: primary keys by attribute, and each key's attribute, so
+   * an update can find the entry to move without reading the old value. Only
+   * changed under the map's lock.
+   */
+  private final class Secondary {
+    private final Function<? super V, ?> attribute;
+    private final ConcurrentHashMap<Object, ConcurrentSkipListSet<K>> keys = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<K, Object> attributes = new ConcurrentSkipListMap<>(comp);
+
+    Secondary(Function<? super V, ?> attribute) {
+      this.attribute = attribute;
+    }
+
+    Object attributeOf(V v) {
+      return (v == null) ? null : attribute.apply(v);
+    }
+
+    void update(K key, Object now) {
+      // now is the key's new attribute, null if removed or unindexed
+      Object was = (now == null) ? attributes.remove(key) : attributes.put(key, now);
+      if (Objects.equals(was, now)) {
+        return;
+      }
+      if (was != null) {
+        ConcurrentSkipListSet<K> ks = keys.get(was);
+        if (ks != null && ks.remove(key) && ks.isEmpty()) {
+          keys.remove(was, ks);
+        }
+      }
+      if (now != null) {
+        keys.computeIfAbsent(now, a -> new ConcurrentSkipListSet<>(comp)).add(key);
+      }
+    }
+
+    void clear() {
+      keys.clear();
+      attributes.clear();
+    }
+  }
+
+  /**
+   * Decoded values by record address. Records never change once written, so an
+   * address is never stale, only unreferenced; overwrites drop the old address.
+   * Bounded by entries and/or bytes. Hits don't lock: a hit just marks its entry
+   * referenced. Eviction is CLOCK, under
+   * the lock on put: addresses queue in insertion order, and a referenced one
+   * gets a second chance at the back of the queue instead of being dropped.
+   */
+  private static class ValueCache<VV> {
+    private static class Cached<VV> {
+      private final VV value;
+      private final int size;
+      private volatile boolean referenced = true;
+
+      Cached(VV value, int size) {
+        this.value = value;
+        this.size = size;
+      }
+    }
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final ConcurrentHashMap<Long, Cached<VV>> cached = new ConcurrentHashMap<>();
+    // guarded by this; may hold addresses removed since, skipped when reached
+    private final ArrayDeque<Long> clock = new ArrayDeque<>();
+    private long bytes = 0;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    ValueCache(int maxEntries, long maxBytes) {
+      this.maxEntries = (maxEntries <= 0) ? Integer.MAX_VALUE : maxEntries;
+      this.maxBytes = (maxBytes <= 0) ? Long.MAX_VALUE : maxBytes;
+    }
+
+    VV get(long addr) {
+      Cached<VV> got = cached.get(addr);
+      if (got == null) {
+        misses.increment();
+        return null;
+      }
+      got.referenced = true;
+      hits.increment();
+      return got.value;
+    }
+
+    synchronized void put(long addr, VV v, int size) {
+      if (size > maxBytes) {
+        return;
+      }
+      Cached<VV> prior = cached.put(addr, new Cached<>(v, size));
+      if (prior != null) {
+        bytes = bytes - prior.size;
+      } else {
+        clock.add(addr);
+      }
+      bytes = bytes + size;
+      // sweep: clear referenced ones, evict the first that isn't
+      while (cached.size() > maxEntries || bytes > maxBytes) {
+        Long a = clock.poll();
+        Cached<VV> c = cached.get(a);
+        if (c == null) {
+          continue;
+        }
+        if (c.referenced) {
+          c.referenced = false;
+          clock.add(a);
+        } else {
+          cached.remove(a);
+          bytes = bytes - c.size;
+        }
+      }
+      if (clock.size() > 2 * cached.size() + 64) {
+        clock.removeIf(a -> !cached.containsKey(a));
+      }
+    }
+
+    synchronized void remove(long addr) {
+      Cached<VV> prior = cached.remove(addr);
+      if (prior != null) {
+        bytes = bytes - prior.size;
+      }
+    }
+
+    synchronized void clear() {
+      cached.clear();
+      clock.clear();
+      bytes = 0;
+    }
+  }
+
+  // per thread, so writers can checksum before taking the lock
+  // crc32c is settled by the log's header before anything is checksummed
+  private boolean crc32c;
+  private final boolean verifyOnRead;
+  private final ThreadLocal<Checksum> digests = ThreadLocal.withInitial(() -> crc32c ? CRC32C.get() : new CRC32());
+  private final Comparator<K> comp;
+  private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<>();
+  private volatile List<Segment> order = new ArrayList<>();
+  private volatile Segment active;
+  private int nextSegmentId = 0;
+  private final long segmentSize;
+  private final Index<K> map;
+  private final View all = new View(null, false, null, false, false);
+  private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(1024 * 1024);
+  private final File file;
+  private long currentWritePos = HDR.length;
+  private volatile long nextWritePos = HDR.length;
+  private volatile int pendingWrites = 0;
+  private final Encoder<K, V> encoder;
+  private final Decoder<K, V> decoder;
+  private final Codec<K> keys;
+  private final Codec<V> values;
+  private final int compression;
+  private final byte[] dictionary;
+  private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+  private final LongAdder rawBytes = new LongAdder();
+  private final LongAdder storedBytes = new LongAdder();
+  private final LongAdder deflateNanos = new LongAdder();
+  private final LongAdder inflateNanos = new LongAdder();
+  private final Recorder getNanos = new Recorder();
+  private final Recorder setNanos = new Recorder();
+  private final Recorder removeNanos = new Recorder();
+  private final Recorder encodeNanos = new Recorder();
+  private final Recorder flushSizes = new Recorder();
+  private final Recorder forceNanos = new Recorder();
+  private final LongAdder bytesAppended = new LongAdder();
+  private final LongAdder bytesRead = new LongAdder();
+  private long entriesOnDisk = 0;
+  private final boolean hints;
+  private final KeyCodec<K> keyCodec;
+  private final boolean mmapReads;
+  private final int mapWindow;
+  // reads served from a map window
+  final LongAdder mappedReads = new LongAdder();
+  private final int recoveryThreads;
+  private final Durability durability;
+  private final ValueCache<V> cache;
+  private final Map<String, Secondary> secondaries = new LinkedHashMap<>();
+  // expiry millis of the keys that have one; entries past it are gone, whether reaped yet or not
+  private final long ttlMillis;
+  private final LongSupplier clock;
+  private final ConcurrentSkipListMap<K, Long> ttls;
+  private final LongAdder expired = new LongAdder();
+  // group commit state: appends so far, and how many of those are known forced
+  private volatile long appended = 0;
+  private final Object commitLock = new Object();
+  private volatile long durable = 0;
+  private boolean committing = false;
+  private int committers = 0;
+  private volatile long syncs = 0;
+  // compaction state; compactSrc is non null while a single file compaction is running.
+  // compacting also pins the log's files while backups and read views (pins of them) need them.
+  private boolean compacting = false;
+  private int pins = 0;
+  private final LongAdder compactionsSkipped = new LongAdder();
+  private final List<ReadView> views = new CopyOnWriteArrayList<>();
+  private Segment compactSrc = null;
+  private long compactEnd;
+  private long compactTailDead;
+  private List<K> compactTail;
+  private ScheduledExecutorService background = null;
+  private ScheduledFuture<?> compactTask = null;
+  private ScheduledFuture<?> flushTask = null;
+  private ScheduledFuture<?> syncTask = null;
+  private ScheduledFuture<?> reapTask = null;
+
+  /**
+   * Default java serialization. Good enough.
+   */
+  @SuppressWarnings("rawtypes")
+  public static Encoder ENCODE_JAVA_SER = (k, v) -> {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(8 * 1024);
+    ObjectOutputStream oos = new ObjectOutputStream(baos);
+    oos.writeUnshared(k);
+    oos.writeUnshared(v);
+    oos.flush();
+    byte[] arr = baos.toByteArray();
+    return ByteBuffer.wrap(arr);
+  };
+
+  /**
+   * Default java serialization for keys alone, for hints.
+   */
+  @SuppressWarnings("rawtypes")
+  public static KeyCodec KEYS_JAVA_SER = new KeyCodec() {
+    @Override
+    public byte[] encodeKey(Object k) throws IOException {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+      ObjectOutputStream oos = new ObjectOutputStream(baos);
+      oos.writeUnshared(k);
+      oos.flush();
+      return baos.toByteArray();
+    }
+
+    @Override
+    public Object decodeKey(byte[] bArray) throws IOException {
+      try {
+        return new ObjectInputStream(new ByteArrayInputStream(bArray)).readObject();
+      } catch (ClassNotFoundException e) {
+        throw new IOException(e);
+      }
+    }
+  };
+
+  /**
+   * Keys for a compact index given neither keyCodec() nor a key codec: Integer,
+   * Long and String keys as a tag byte and their bytes, anything else java
+   * serialized behind a tag, so lookups need not deserialize common keys.
+   */
+  private static final KeyCodec<Object> KEYS_COMPACT = new KeyCodec<Object>() {
+    @Override
+    public byte[] encodeKey(Object k) throws IOException {
+      if (k instanceof Integer) {
+        return ByteBuffer.allocate(5).put((byte) 'I').putInt((Integer) k).array();
+      }
+      if (k instanceof Long) {
+        return ByteBuffer.allocate(9).put((byte) 'J').putLong((Long) k).array();
+      }
+      if (k instanceof String) {
+        byte[] s = ((String) k).getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + s.length).put((byte) 'S').put(s).array();
+      }
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+      baos.write('O');
+      ObjectOutputStream oos = new ObjectOutputStream(baos);
+      oos.writeUnshared(k);
+      oos.flush();
+      return baos.toByteArray();
+    }
+
+    @Override
+    public Object decodeKey(byte[] bArray) throws IOException {
+      ByteBuffer b = ByteBuffer.wrap(bArray, 1, bArray.length - 1);
+      switch (bArray[0]) {
+        case 'I':
+          return b.getInt();
+        case 'J':
+          return b.getLong();
+        case 'S':
+          return new String(bArray, 1, bArray.length - 1, StandardCharsets.UTF_8);
+        default:
+          try {
+            return new ObjectInputStream(new ByteArrayInputStream(bArray, 1, bArray.length - 1)).readObject();
+          } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+          }
+      }
+    }
+  };
+
+  /**
+   * Default java deserialization. Good enough.
+   */
+  @SuppressWarnings( { "rawtypes" })
+  public static Decoder DECODE_JAVA_SER = (barr) -> {
+    ByteArrayInputStream bais = new ByteArrayInputStream(barr);
+    ObjectInputStream is = new ObjectInputStream(bais);
+    try {
+      Object k = is.readObject();
+      Object v = is.readObject();
+      return new SimpleImmutableEntry<>(k, v);
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    }
+  };
+
+  private static <KK> KeyCodec<KK> keyCodecOf(Codec<KK> codec) {
+    return new KeyCodec<KK>() {
+      @Override
+      public byte[] encodeKey(KK k) {
+        ByteBuffer b = ByteBuffer.allocate(codec.size(k));
+        codec.encode(k, b);
+        return b.array();
+      }
+
+      @Override
+      public KK decodeKey(byte[] bArray) {
+        return codec.decode(ByteBuffer.wrap(bArray));
+      }
+    };
+  }
+
+  public ChiseledMap(File file, OpenOption open, Comparator<K> comp) throws IOException {
+    this(file, open, comp, null, null);
+  }
+
+  /**
+   * Constructor. Create a TinyKVMap.
+   * @param file File to use.
+   * @param open Open mode
+   * @param comp Comparator to use. If null, Comparator.naturalOrder() is used.
+   * @param encoder Encoder to use. If null, default Java serializer is used.
+   * @param decoder Decoder to use. If null, default Java deserializer is used.
+   * @throws IOException on exception
+   */
+  public ChiseledMap(File file,
+                     OpenOption open,
+                     Comparator<K> comp,
+                     Encoder<K, V> encoder,
+                     Decoder<K, V> decoder) throws IOException {
+    this(file, open, new Config<K, V>().comparator(comp).encoder(encoder).decoder(decoder));
+  }
+
+  @SuppressWarnings( { "raw", "unchecked" })
+  private ChiseledMap(File file, OpenOption open, Config<K, V> config) throws IOException {
+    Objects.requireNonNull(file);
+    this.encoder = (config.encoder == null) ? ENCODE_JAVA_SER : config.encoder;
+    this.decoder = (config.decoder == null) ? DECODE_JAVA_SER : config.decoder;
+    this.comp = (config.comparator == null) ? (a, b) -> ((Comparable<K>) a).compareTo(b) : config.comparator;
+    this.file = file;
+    this.segmentSize = config.segmentSize;
+    this.hints = config.hints;
+    this.keys = config.keys;
+    this.values = config.values;
+    this.compression = config.compression;
+    this.crc32c = config.crc32c;
+    this.verifyOnRead = config.verifyOnRead;
+    this.dictionary = config.dictionary;
+    if (config.keyCodec != null) {
+      this.keyCodec = config.keyCodec;
+    } else {
+      this.keyCodec = (keys == null) ? KEYS_JAVA_SER : keyCodecOf(keys);
+    }
+    if (config.compactIndex) {
+      @SuppressWarnings("unchecked")
+      KeyCodec<K> indexCodec = (config.keyCodec == null && keys == null) ? (KeyCodec<K>) KEYS_COMPACT : keyCodec;
+      this.map = new CompactIndex<>(comp, indexCodec);
+    } else {
+      this.map = new SkipListIndex<>(comp);
+    }
+    this.ttlMillis = config.ttlMillis;
+    this.clock = config.clock;
+    this.ttls = new ConcurrentSkipListMap<>(comp);
+    this.mmapReads = config.mmapReads;
+    this.mapWindow = config.mapWindow;
+    this.recoveryThreads = config.recoveryThreads;
+    this.durability = config.durability;
+    boolean caching = config.cacheEntries > 0 || config.cacheBytes > 0;
+    this.cache = caching ? new ValueCache<>(config.cacheEntries, config.cacheBytes) : null;
+    config.secondaries.forEach((name, f) -> secondaries.put(name, new Secondary(f)));
+    if (segmentSize > 0) {
+      openSegmented(open);
+    } else {
+      openSingle(open);
+    }
+    rebuild();
+    if (durability.kind == Durability.Kind.PERIODIC) {
+      syncTask = background().scheduleWithFixedDelay(() -> {
+        try {
+          if (durable < appended) {
+            forceAppended();
+          }
+        } catch (IOException | RuntimeException e) {
+          // try again next time.
+        }
+      }, durability.nanos, durability.nanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private void openSingle(OpenOption open) throws IOException {
+    FileChannel fc;
+    switch (open) {
+      case MUST_BE_NEW:
+        fc = FileChannel.open(file.toPath(), CREATE_NEW, READ, WRITE);
+        break;
+      case MUST_EXIST:
+        fc = FileChannel.open(file.toPath(), READ, WRITE);
+        break;
+      default:
+        fc = FileChannel.open(file.toPath(), CREATE, READ, WRITE);
+        break;
+    }
+    Segment seg = new Segment(nextSegmentId++, file, fc);
+    if (fc.size() > 0) {
+      crc32c = verifyHeader(seg);
+    } else {
+      writeHeader(fc);
+    }
+    segments.put(seg.id, seg);
+    order.add(seg);
+  }
+
+  private void openSegmented(OpenOption open) throws IOException {
+    File manifest = new File(file, MANIFEST);
+    String[] present = file.list();
+    if (open == OpenOption.MUST_BE_NEW && present != null && present.length > 0) {
+      throw new IOException("Directory not empty: " + file);
+    }
+    if (open == OpenOption.MUST_EXIST && !manifest.exists()) {
+      throw new IOException("No manifest: " + manifest);
+    }
+    if (!file.isDirectory() && !file.mkdirs()) {
+      throw new IOException("Unable to create directory: " + file);
+    }
+    if (manifest.exists()) {
+      for (int id : readManifest()) {
+        File f = segmentFile(id);
+        Segment seg = new Segment(id, f, FileChannel.open(f.toPath(), READ, WRITE));
+        boolean c = verifyHeader(seg);
+        if (order.isEmpty()) {
+          crc32c = c;
+        } else if (c != crc32c) {
+          throw new IOException("Segment checksum differs from the rest: " + seg.file);
+        }
+        segments.put(id, seg);
+        order.add(seg);
+        nextSegmentId = Math.max(nextSegmentId, id + 1);
+      }
+    }
+    // anything not in the manifest is left over from an interrupted compaction.
+    File[] all = file.listFiles((d, name) -> name.endsWith(".seg") || name.endsWith(".hint"));
+    for (File f : all == null ? new File[0] : all) {
+      if (order.stream().noneMatch(s -> s.file.equals(f) || hintFile(s).equals(f))) {
+        Files.delete(f.toPath());
+      }
+    }
+    if (order.isEmpty()) {
+      Segment seg = newSegment();
+      segments.put(seg.id, seg);
+      order.add(seg);
+      writeManifest(order);
+    }
+  }
+
+  private File segmentFile(int id) {
+    return new File(file, String.format("%08d.seg", id));
+  }
+
+  private File hintFile(Segment seg) {
+    return (segmentSize > 0) ? new File(file, String.format("%08d.hint", seg.id)) : new File(file.getPath() + ".hint");
+  }
+
+  private Segment newSegment() throws IOException {
+    int id = nextSegmentId++;
+    File f = segmentFile(id);
+    Segment seg = new Segment(id, f, FileChannel.open(f.toPath(), CREATE_NEW, READ, WRITE));
+    writeHeader(seg.fc);
+    return seg;
+  }
+
+  private List<Integer> readManifest() throws IOException {
+    // header, count, ids, crc
+    ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(new File(file, MANIFEST).toPath()));
+    ByteBuffer hdr = b.duplicate();
+    hdr.limit(HDR.length);
+    if (b.remaining() < HDR.length + 2 * Integer.BYTES || hdr.compareTo(ByteBuffer.wrap(HDR)) != 0) {
+      throw new IOException("Manifest Header Mismatch!");
+    }
+    CRC32 crc = new CRC32();
+    crc.update(b.array(), 0, b.limit() - Integer.BYTES);
+    if ((int) (crc.getValue() & DIGEST_MASK) != b.getInt(b.limit() - Integer.BYTES)) {
+      throw new IOException("Manifest checksum mismatch!");
+    }
+    b.position(HDR.length);
+    int many = b.getInt();
+    ArrayList<Integer> ret = new ArrayList<>(many);
+    for (int i = 0; i < many; i++) {
+      ret.add(b.getInt());
+    }
+    return ret;
+  }
+
+  private void writeManifest(List<Segment> segs) throws IOException {
+    // write aside, force, then atomically move into place.
+    ByteBuffer b = ByteBuffer.allocate(HDR.length + (segs.size() + 2) * Integer.BYTES);
+    b.put(HDR);
+    b.putInt(segs.size());
+    segs.forEach(s -> b.putInt(s.id));
+    CRC32 crc = new CRC32();
+    crc.update(b.array(), 0, b.position());
+    b.putInt((int) (crc.getValue() & DIGEST_MASK));
+    b.flip();
+    File tmp = new File(file, MANIFEST + ".tmp");
+    try (FileChannel fc = FileChannel.open(tmp.toPath(), CREATE, WRITE, TRUNCATE_EXISTING)) {
+      writeFully(fc, b, 0);
+      fc.force(true);
+    }
+    Files.move(tmp.toPath(), new File(file, MANIFEST).toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+  }
+
+  private synchronized void roll() throws IOException {
+    // seal the active segment, start a new one.
+    flushBuffer();
+    active.end = currentWritePos;
+    force(active.fc);
+    if (active.log != null) {
+      // sealed segments never change, so the hint can be written whenever.
+      Segment sealed = active;
+      List<HintRec<?>> log = sealed.log;
+      sealed.log = null;
+      background().execute(() -> {
+        try {
+          if (order.contains(sealed)) {
+            writeHint(sealed, sealed.end, sealed.entries, -1, log);
+          }
+        } catch (IOException | RuntimeException e) {
+          // no hint, then; restart will scan this segment.
+        }
+      });
+    }
+    Segment seg = newSegment();
+    seg.log = hints ? new ArrayList<>() : null;
+    ArrayList<Segment> next = new ArrayList<>(order);
+    next.add(seg);
+    writeManifest(next);
+    segments.put(seg.id, seg);
+    order = next;
+    // positions first, readers look at active then nextWritePos
+    currentWritePos = HDR.length;
+    nextWritePos = HDR.length;
+    active = seg;
+  }
+
+  private static long address(int segment, long offset) {
+    return ((long) segment << SEGMENT_SHIFT) | offset;
+  }
+
+  private static int segmentOf(long addr) {
+    return (int) (addr >>> SEGMENT_SHIFT);
+  }
+
+  private static long offsetOf(long addr) {
+    return addr & OFFSET_MASK;
+  }
+
+  private static boolean verifyHeader(Segment seg) throws IOException {
+    // true if the file's records use CRC32C
+    ByteBuffer p = ByteBuffer.allocate(HDR.length);
+    readFully(seg.fc, 0, p);
+    p.clear();
+    if (p.compareTo(ByteBuffer.wrap(HDR_CRC32C)) == 0) {
+      return true;
+    }
+    if (p.compareTo(ByteBuffer.wrap(HDR)) != 0) {
+      throw new IOException("File Header Mismatch! " + seg.file);
+    }
+    return false;
+  }
+
+  private void writeHeader(FileChannel fc) throws IOException {
+    // write at the beginning, then leave position alone
+    fc.position(0);
+    writeFully(fc, ByteBuffer.wrap(crc32c ? HDR_CRC32C : HDR), 0);
+  }
+
+  private void rebuild() throws IOException {
+    // replay every segment in log order; nothing is buffered yet.
+    nextWritePos = Long.MAX_VALUE;
+    ForkJoinPool pool = (recoveryThreads > 1) ? new ForkJoinPool(recoveryThreads) : null;
+    try {
+      for (Segment seg : order) {
+        active = seg;
+        // only the active segment of a segmented log keeps a record log
+        seg.log = (hints && segmentSize > 0 && seg == order.get(order.size() - 1)) ? new ArrayList<>() : null;
+        long from = replayHint(seg);
+        if (pool == null) {
+          scan(seg, from);
+        } else {
+          scanParallel(seg, from, pool);
+        }
+      }
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+    currentWritePos = active.end;
+    nextWritePos = active.end;
+    if (!secondaries.isEmpty()) {
+      // the only part of a restart that needs the values
+      for (Entry<K, V> ent : entries()) {
+        for (Secondary ix : secondaries.values()) {
+          ix.update(ent.getKey(), ix.attributeOf(ent.getValue()));
+        }
+      }
+    }
+  }
+
+  /**
+   * What a recovery chunk found: per record, the decoded key, whether it is a
+   * removal and when it expires, or for a batch header its count and byte length.
+   * offs are the chunk's record boundaries, one more than its records. bad is the
+   * first record that failed its CRC or decode, or -1.
+   */
+  private static class Recovered {
+    private final long[] offs;
+    private final Object[] keys;
+    private final boolean[] tombs;
+    private final long[] expires;
+    private final long[][] batches;
+    private int bad = -1;
+
+    Recovered(long[] offs) {
+      int many = offs.length - 1;
+      this.offs = offs;
+      keys = new Object[many];
+      tombs = new boolean[many];
+      expires = new long[many];
+      batches = new long[many][];
+    }
+  }
+
+  private void scanParallel(Segment seg, long from, ForkJoinPool pool) throws IOException {
+    // boundaries from the length words, read sequentially through a big buffer, cut into
+    // chunks of up to 1024 records or 4MB. Chunks are checked and decoded on the pool, and
+    // indexed in log order as they come back, with at most two per thread in flight.
+    long fileSize = seg.fc.size();
+    ByteBuffer b = ByteBuffer.allocateDirect(4 * 1024 * 1024);
+    long bStart = from;
+    b.limit(0);
+    long pos = from;
+    long[] offs = new long[1024 + 1];
+    offs[0] = pos;
+    int n = 0;
+    int most = 2 * pool.getParallelism();
+    ArrayDeque<Future<Recovered>> inFlight = new ArrayDeque<>();
+    Replay replay = new Replay(seg, from);
+    try {
+      boolean more = true;
+      while (more && !replay.stopped) {
+        more = pos + Integer.BYTES + Integer.BYTES <= fileSize;
+        if (more) {
+          if (pos + Integer.BYTES > bStart + b.limit()) {
+            b.clear();
+            b.limit((int) Math.min(b.capacity(), fileSize - pos));
+            readFully(seg.fc, pos, b);
+            bStart = pos;
+          }
+          long next = pos + (b.getInt((int) (pos - bStart)) & LEN_MASK) + Integer.BYTES + Integer.BYTES;
+          more = next <= fileSize;
+          if (more) {
+            offs[++n] = next;
+            pos = next;
+          }
+        }
+        if (n > 0 && (!more || n == offs.length - 1 || pos - offs[0] >= b.capacity())) {
+          long[] chunk = Arrays.copyOf(offs, n + 1);
+          inFlight.add(pool.submit(() -> recover(seg, chunk)));
+          offs[0] = pos;
+          n = 0;
+        }
+        // index whatever is done, in order; wait only when the window is full
+        while (!inFlight.isEmpty() && (inFlight.size() >= most || !more || inFlight.peek().isDone())) {
+          replay.index(recovered(inFlight.poll()));
+        }
+      }
+    } finally {
+      if (!inFlight.isEmpty()) {
+        // on failure, drop the chunks not yet started and let running ones finish
+        // before the caller closes the channel under them
+        for (Future<Recovered> f : inFlight) {
+          f.cancel(true);
+        }
+        pool.awaitQuiescence(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      }
+    }
+    seg.end = replay.end;
+    seg.fc.truncate(replay.end);
+  }
+
+  private static Recovered recovered(Future<Recovered> f) throws IOException {
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Indexes recovered chunks in log order for scanParallel(), up to the first
+   * bad record. A batch can run on into later chunks, so its records are held
+   * back until the last one has turned up sound; end is the end of what has
+   * been indexed, so where the log is cut if a batch never completes.
+   */
+  private final class Replay {
+    private final Segment seg;
+    private long end;
+    private boolean stopped = false;
+    // the held batch's header: where, how big, how many records, where they end
+    private long batchAt = -1;
+    private int batchSize;
+    private long batchMany;
+    private long batchEnd;
+    private final List<Object> heldKeys = new ArrayList<>();
+    private final List<long[]> heldRecs = new ArrayList<>();
+
+    Replay(Segment seg, long from) {
+      this.seg = seg;
+      this.end = from;
+    }
+
+    @SuppressWarnings("unchecked")
+    void index(Recovered r) throws IOException {
+      int good = (r.bad >= 0) ? r.bad : r.keys.length;
+      for (int j = 0; j < good && !stopped; j++) {
+        long at = r.offs[j];
+        long next = r.offs[j + 1];
+        if (r.batches[j] != null) {
+          if (batchAt >= 0) {
+            // no batches within batches
+            stopped = true;
+            break;
+          }
+          batchAt = at;
+          batchSize = (int) (next - at);
+          batchMany = r.batches[j][0];
+          batchEnd = next + r.batches[j][1];
+        } else if (batchAt >= 0) {
+          heldKeys.add(r.keys[j]);
+          heldRecs.add(new long[] { at, next - at, r.tombs[j] ? 1 : 0, r.expires[j] });
+        } else {
+          loaded(seg, (K) r.keys[j], at, (int) (next - at), r.tombs[j], r.expires[j]);
+          end = next;
+        }
+        if (batchAt >= 0 && heldRecs.size() == batchMany) {
+          // a batch counts only if every record in it made it
+          if (next != batchEnd) {
+            stopped = true;
+            break;
+          }
+          loaded(seg, null, batchAt, batchSize, true, 0);
+          for (int i = 0; i < heldRecs.size(); i++) {
+            long[] h = heldRecs.get(i);
+            loaded(seg, (K) heldKeys.get(i), h[0], (int) h[1], h[2] != 0, h[3]);
+          }
+          heldKeys.clear();
+          heldRecs.clear();
+          batchAt = -1;
+          end = batchEnd;
+        }
+      }
+      if (r.bad >= 0) {
+        stopped = true;
+      }
+    }
+  }
+
+  private Recovered recover(Segment seg, long[] offs) throws IOException {
+    // one read for the chunk, then crc and decode each record in it
+    Recovered ret = new Recovered(offs);
+    byte[] buf = new byte[(int) (offs[offs.length - 1] - offs[0])];
+    readFully(seg.fc, offs[0], ByteBuffer.wrap(buf));
+    ByteBuffer wrap = ByteBuffer.wrap(buf);
+    for (int i = 0; i < offs.length - 1; i++) {
+      int p = (int) (offs[i] - offs[0]);
+      int raw = wrap.getInt(p);
+      int len = raw & LEN_MASK;
+      if (digest(buf, p + Integer.BYTES, len) != wrap.getInt(p + Integer.BYTES + len)) {
+        ret.bad = i;
+        return ret;
+      }
+      try {
+        if ((raw & BATCH_FLAG) != 0) {
+          ret.batches[i] = new long[] { wrap.getInt(p + Integer.BYTES), wrap.getLong(p + Integer.BYTES * 2) };
+        } else {
+          ByteBuffer rec = ByteBuffer.wrap(buf, p + Integer.BYTES, len + Integer.BYTES).slice();
+          if ((raw & TTL_FLAG) != 0) {
+            ret.expires[i] = rec.getLong(0);
+            rec.position(Long.BYTES);
+            rec = rec.slice();
+          }
+          Entry<K, Boolean> got = keyOf(((raw & ZIP_FLAG) != 0) ? inflate(rec) : rec);
+          ret.keys[i] = got.getKey();
+          ret.tombs[i] = got.getValue();
+        }
+      } catch (IOException | RuntimeException e) {
+        ret.bad = i;
+        return ret;
+      }
+    }
+    return ret;
+  }
+
+  @SuppressWarnings("unchecked")
+  private long replayHint(Segment seg) {
+    // load the index from a hint, if there is a good one; returns where to scan from.
+    File f = hintFile(seg);
+    if (!hints || !f.exists()) {
+      return HDR.length;
+    }
+    long end;
+    long entries;
+    long dead;
+    ArrayList<HintRec<K>> recs = new ArrayList<>();
+    try (BufferedInputStream raw = new BufferedInputStream(new FileInputStream(f), 64 * 1024)) {
+      CheckedInputStream checked = new CheckedInputStream(raw, new CRC32());
+      DataInputStream dis = new DataInputStream(checked);
+      byte[] hdr = new byte[HDR.length];
+      dis.readFully(hdr);
+      end = dis.readLong();
+      entries = dis.readLong();
+      dead = dis.readLong();
+      int many = dis.readInt();
+      if (!Arrays.equals(hdr, HDR) || end > seg.fc.size()) {
+        return HDR.length;
+      }
+      for (int i = 0; i < many; i++) {
+        // 0 live, 1 removal, 2 live until an expiry
+        int kind = dis.readByte();
+        boolean tomb = kind == 1;
+        long expires = (kind == 2) ? dis.readLong() : 0;
+        int klen = dis.readInt();
+        K key = null;
+        if (klen >= 0) {
+          byte[] kb = new byte[klen];
+          dis.readFully(kb);
+          key = keyCodec.decodeKey(kb);
+        }
+        recs.add(new HintRec<>(key, dis.readLong(), dis.readInt(), tomb, expires));
+      }
+      int chk = (int) (checked.getChecksum().getValue() & DIGEST_MASK);
+      if (chk != new DataInputStream(raw).readInt()) {
+        return HDR.length;
+      }
+    } catch (IOException | RuntimeException e) {
+      return HDR.length;
+    }
+    long now = clock.getAsLong();
+    for (HintRec<K> r : recs) {
+      long addr = address(seg.id, r.offset);
+      boolean gone = r.tomb || isExpired(r.expires, now);
+      Long prior = (r.key == null) ? null : gone ? map.remove(r.key) : map.put(r.key, addr);
+      if (r.key != null) {
+        expiring(r.key, gone ? 0 : r.expires);
+      }
+      try {
+        if (prior != null) {
+          died(prior);
+        }
+        if (r.tomb) {
+          died(addr, r.size);
+        } else if (gone) {
+          // live hints of a single file carry no size
+          died(addr, (r.size > 0) ? r.size : recordSize(addr));
+        }
+      } catch (IOException e) {
+        throw new RuntimeIOException(e);
+      }
+      if (seg.log != null) {
+        seg.log.add(r);
+      }
+    }
+    // a hint of live records only carries the dead count for the rest.
+    seg.dead = seg.dead + Math.max(dead, 0);
+    seg.entries = entries;
+    entriesOnDisk = entriesOnDisk + entries;
+    return end;
+  }
+
+  private void writeHint(Segment seg, long end, long entries, long dead, List<? extends HintRec<?>> recs)
+    throws IOException {
+    // header, end offset covered, entries, dead bytes or -1, records, crc. Write aside, then move.
+    File f = hintFile(seg);
+    File tmp = new File(f.getPath() + ".tmp");
+    try (FileOutputStream fos = new FileOutputStream(tmp)) {
+      BufferedOutputStream raw = new BufferedOutputStream(fos, 64 * 1024);
+      CheckedOutputStream checked = new CheckedOutputStream(raw, new CRC32());
+      DataOutputStream dos = new DataOutputStream(checked);
+      dos.write(HDR);
+      dos.writeLong(end);
+      dos.writeLong(entries);
+      dos.writeLong(dead);
+      dos.writeInt(recs.size());
+      for (HintRec<?> r : recs) {
+        if (r.tomb) {
+          dos.writeByte(1);
+        } else if (r.expires != 0) {
+          dos.writeByte(2);
+          dos.writeLong(r.expires);
+        } else {
+          dos.writeByte(0);
+        }
+        if (r.key == null) {
+          // batch header
+          dos.writeInt(-1);
+        } else {
+          @SuppressWarnings("unchecked")
+          byte[] kb = keyCodec.encodeKey((K) r.key);
+          dos.writeInt(kb.length);
+          dos.write(kb);
+        }
+        dos.writeLong(r.offset);
+        dos.writeInt(r.size);
+      }
+      dos.flush();
+      new DataOutputStream(raw).writeInt((int) (checked.getChecksum().getValue() & DIGEST_MASK));
+      raw.flush();
+      fos.getFD().sync();
+    }
+    Files.move(tmp.toPath(), f.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+  }
+
+  private void writeActiveHint() throws IOException {
+    // at close; records are all flushed and forced by now.
+    if (active.log != null) {
+      writeHint(active, currentWritePos, active.entries, -1, active.log);
+    } else if (hints && segmentSize == 0) {
+      // single file: the live records are the whole story, plus the dead count.
+      // sizes are only needed for removals, so skip reading them.
+      ArrayList<HintRec<K>> recs = new ArrayList<>(map.size());
+      for (Entry<K, Long> ent : map) {
+        recs.add(new HintRec<>(ent.getKey(), offsetOf(ent.getValue()), 0, false, expiresAt(ent.getKey())));
+      }
+      writeHint(active, currentWritePos, active.entries, active.dead, recs);
+    }
+  }
+
+  private void scan(Segment seg, long from) throws IOException {
+    // scan the rest of the file, loading each entry where crc matches.
+    long pos = from;
+    long[] nextPos = new long[3];
+    for (; ; ) {
+      try {
+        ByteBuffer raw = readRecord(address(seg.id, pos), true, nextPos);
+        long expires = nextPos[2];
+        long next = offsetOf(nextPos[0]);
+        if ((nextPos[1] & BATCH_FLAG) != 0) {
+          // a batch counts only if every record in it is there and sound
+          int many = raw.getInt(0);
+          long end = next + raw.getLong(Integer.BYTES);
+          List<Entry<K, Boolean>> recs = new ArrayList<>(many);
+          long[] at = new long[many + 1];
+          long[] exp = new long[many];
+          at[0] = next;
+          for (int i = 0; i < many; i++) {
+            recs.add(keyOf(readRecord(address(seg.id, at[i]), true, nextPos)));
+            at[i + 1] = offsetOf(nextPos[0]);
+            exp[i] = nextPos[2];
+          }
+          if (at[many] != end) {
+            throw new IOException("Bad batch at " + pos);
+          }
+          loaded(seg, null, pos, (int) (next - pos), true, 0);
+          for (int i = 0; i < many; i++) {
+            Entry<K, Boolean> r = recs.get(i);
+            loaded(seg, r.getKey(), at[i], (int) (at[i + 1] - at[i]), r.getValue(), exp[i]);
+          }
+          pos = end;
+        } else {
+          Entry<K, Boolean> got = keyOf(raw);
+          loaded(seg, got.getKey(), pos, (int) (next - pos), got.getValue(), expires);
+          pos = next;
+        }
+      } catch (Exception e) {
+        // truncate to end of last known good block.
+        seg.end = pos;
+        seg.fc.truncate(pos);
+        break;
+      }
+    }
+  }
+
+  private void loaded(Segment seg, K key, long pos, int size, boolean tomb, long expires) throws IOException {
+    // index a record found by scan(); a null key is a batch header, only its bytes matter.
+    // an expired record is dead, and still hides older versions of its key.
+    long addr = address(seg.id, pos);
+    boolean gone = tomb || isExpired(expires, clock.getAsLong());
+    if (key != null) {
+      // null value is a removal tombstone
+      Long prior = gone ? map.remove(key) : map.put(key, addr);
+      expiring(key, gone ? 0 : expires);
+      if (prior != null) {
+        died(prior);
+      }
+    }
+    if (gone) {
+      died(addr, size);
+    }
+    if (seg.log != null) {
+      seg.log.add(new HintRec<>(key, pos, size, tomb, expires));
+    }
+    seg.entries++;
+    entriesOnDisk++;
+  }
+
+  private Segment segmentFor(long addr) throws IOException {
+    Segment seg = segments.get(segmentOf(addr));
+    if (seg == null) {
+      // compaction retired it; caller should re-read the index
+      throw new IOException("Stale address: " + Long.toHexString(addr));
+    }
+    return seg;
+  }
+
+  private Entry<K, V> fetch(long addr, boolean check, long[] nextPos) throws IOException {
+    // core retrieval by address code.
+    return decode(readRecord(addr, check, nextPos));
+  }
+
+  private Entry<K, V> decode(ByteBuffer rec) throws IOException {
+    // key and value of a record, as read by readRecord()
+    if (keys == null) {
+      // decode key and value. Rock on. Note there is a spare 4 bytes at the
+      // end. Dirty coding FTW!
+      return decoder.decode(bytes(rec));
+    }
+    ByteBuffer b = rec.duplicate();
+    K k = keys.decode(b);
+    return new SimpleImmutableEntry<>(k, (b.get() == 0) ? null : values.decode(b));
+  }
+
+  private Entry<K, Boolean> keyOf(ByteBuffer rec) throws IOException {
+    // key of a record, and whether it is a removal; codecs skip the value
+    if (keys == null) {
+      Entry<K, V> got = decoder.decode(bytes(rec));
+      return new SimpleImmutableEntry<>(got.getKey(), got.getValue() == null);
+    }
+    ByteBuffer b = rec.duplicate();
+    K k = keys.decode(b);
+    return new SimpleImmutableEntry<>(k, b.get() == 0);
+  }
+
+  private static byte[] bytes(ByteBuffer rec) {
+    // the record as an array for the Decoder; no copy when it already is one
+    if (rec.hasArray() && rec.arrayOffset() == 0 && rec.position() == 0 && rec.limit() == rec.array().length) {
+      return rec.array();
+    }
+    byte[] ret = new byte[rec.remaining()];
+    rec.duplicate().get(ret);
+    return ret;
+  }
+
+  private ByteBuffer readRecord(long addr, boolean check, long[] nextPos) throws IOException {
+    // raw payload + crc at addr, inflated if need be. First, the write buffer if it's not on disk yet
+    Segment seg = segmentFor(addr);
+    long off = offsetOf(addr);
+    ByteBuffer r = (seg == active && off >= nextWritePos) ? readBuffered(seg, off) : null;
+    if (r == null && mmapReads && nextPos == null) {
+      // not while scanning; the file may run past what is known good
+      r = readMapped(seg, off);
+    }
+    int word;
+    if (r != null) {
+      // whole record; step over the length
+      word = r.getInt(0);
+      r.position(Integer.BYTES);
+      r = r.slice();
+    } else {
+      // read the length
+      ByteBuffer tmp = ByteBuffer.allocate(Integer.BYTES);
+      readFully(seg.fc, off, tmp);
+      word = tmp.getInt(0);
+      // read data + crc
+      r = ByteBuffer.allocate((word & LEN_MASK) + Integer.BYTES);
+      readFully(seg.fc, off + Integer.BYTES, r);
+      r.clear();
+    }
+    int len = word & LEN_MASK;
+    bytesRead.add(len + Integer.BYTES + Integer.BYTES);
+    // if we are checking...
+    if (check) {
+      // last 4 bytes are the digest;
+      ByteBuffer body = r.duplicate();
+      body.limit(len);
+      if (digest(body) != r.getInt(len)) {
+        throw new IOException("Checksum mismatch at " + Long.toHexString(addr));
+      }
+    }
+    long expires = 0;
+    if ((word & TTL_FLAG) != 0) {
+      // step over the expiry
+      expires = r.getLong(0);
+      r.position(Long.BYTES);
+      r = r.slice();
+    }
+    if (nextPos != null) {
+      // if we have a nextpos array, return the next adddress, and flags from
+      // the length in [1] and the expiry in [2] if there is room.
+      nextPos[0] = addr + len + Integer.BYTES + Integer.BYTES;
+      if (nextPos.length > 1) {
+        nextPos[1] = word & ~LEN_MASK;
+      }
+      if (nextPos.length > 2) {
+        nextPos[2] = expires;
+      }
+    }
+    return ((word & ZIP_FLAG) != 0) ? inflate(r) : r;
+  }
+
+  private synchronized ByteBuffer readBuffered(Segment seg, long off) {
+    // whole unflushed record, or null if it was flushed meanwhile.
+    if (seg != active || off < nextWritePos) {
+      return null;
+    }
+    int p = (int) (off - nextWritePos);
+    byte[] r = new byte[Integer.BYTES + (writeBuffer.getInt(p) & LEN_MASK) + Integer.BYTES];
+    ByteBuffer dup = writeBuffer.duplicate();
+    dup.position(p);
+    dup.get(r);
+    return ByteBuffer.wrap(r);
+  }
+
+  private ByteBuffer readMapped(Segment seg, long off) throws IOException {
+    // whole record in place in a mapped window, or null if it isn't wholly inside one.
+    int w = (int) (off / mapWindow);
+    int p = (int) (off - (long) w * mapWindow);
+    ByteBuffer win = window(seg, w);
+    if (win == null || p + Integer.BYTES > win.limit()) {
+      return null;
+    }
+    int len = win.getInt(p) & LEN_MASK;
+    if (p + Integer.BYTES + len + Integer.BYTES > win.limit()) {
+      return null;
+    }
+    ByteBuffer dup = win.duplicate();
+    dup.limit(p + Integer.BYTES + len + Integer.BYTES);
+    dup.position(p);
+    mappedReads.increment();
+    return dup.slice();
+  }
+
+  private ByteBuffer window(Segment seg, int w) throws IOException {
+    // map window w of the segment, if it is sealed (won't change any more)
+    MappedByteBuffer[] ws = seg.windows;
+    if (w < ws.length && ws[w] != null) {
+      return ws[w];
+    }
+    long start = (long) w * mapWindow;
+    boolean sealed = seg != active;
+    long size = Math.min(mapWindow, (sealed ? seg.end : nextWritePos) - start);
+    if (size <= 0 || (!sealed && size < mapWindow)) {
+      return null;
+    }
+    synchronized (seg) {
+      ws = seg.windows;
+      if (w >= ws.length || ws[w] == null) {
+        ws = Arrays.copyOf(ws, Math.max(ws.length, w + 1));
+        ws[w] = seg.fc.map(FileChannel.MapMode.READ_ONLY, start, size);
+        seg.windows = ws;
+      }
+      return ws[w];
+    }
+  }
+
+  private static void readFully(FileChannel fc, long addr, ByteBuffer tmp) throws IOException {
+    do {
+      int many = fc.read(tmp, addr);
+      if (many <= 0) {
+        throw new IOException();
+      }
+      addr = addr + many;
+    } while (tmp.hasRemaining());
+  }
+
+  private synchronized void flushBuffer() throws IOException {
+    // flush defautl buffer, reset pending count
+    flushBuffer(writeBuffer);
+    pendingWrites = 0;
+  }
+
+  private void flushBuffer(ByteBuffer b) throws IOException {
+    // flush arbitrary buffer to disk, update next write pos
+    b.flip();
+    int toWrite = b.remaining();
+    if (toWrite > 0) {
+      flushSizes.record(toWrite);
+    }
+    writeFully(active.fc, b, nextWritePos);
+    b.clear();
+    nextWritePos = nextWritePos + toWrite;
+  }
+
+  private Object[] attributes(V v) {
+    // v's attribute in each secondary index, in order; user code, so worked out with the record, before any lock
+    if (v == null || secondaries.isEmpty()) {
+      return null;
+    }
+    Object[] ret = new Object[secondaries.size()];
+    int i = 0;
+    for (Secondary ix : secondaries.values()) {
+      ret[i++] = ix.attributeOf(v);
+    }
+    return ret;
+  }
+
+  private ByteBuffer frame(K key, V v) throws IOException {
+    // values expire after the configured time to live, if any; removals never do
+    return frame(key, v, (v != null && ttlMillis > 0) ? clock.getAsLong() + ttlMillis : 0);
+  }
+
+  private ByteBuffer frame(K key, V v, long expires) throws IOException {
+    // encode and checksum a whole record, on the caller's thread, no lock needed
+    long t0 = System.nanoTime();
+    try {
+      ByteBuffer rec = encode(key, v);
+      return (expires == 0) ? rec : expiring(rec, expires);
+    } finally {
+      encodeNanos.since(t0);
+    }
+  }
+
+  private ByteBuffer expiring(ByteBuffer rec, long expires) throws IOException {
+    // the same record with the expiry ahead of its payload, checksummed again
+    int word = rec.getInt(0);
+    int len = word & LEN_MASK;
+    if (len + Long.BYTES > LEN_MASK) {
+      throw new IOException("Record too large: " + (len + Long.BYTES));
+    }
+    ByteBuffer ret = ByteBuffer.allocate(Integer.BYTES + Long.BYTES + len + Integer.BYTES);
+    ret.putInt((len + Long.BYTES) | (word & ~LEN_MASK) | TTL_FLAG);
+    ret.putLong(expires);
+    ByteBuffer payload = rec.duplicate();
+    payload.position(Integer.BYTES).limit(Integer.BYTES + len);
+    ret.put(payload);
+    ret.putInt(digest(ret.array(), Integer.BYTES, Long.BYTES + len));
+    ret.flip();
+    return ret;
+  }
+
+  private static long expiryOf(ByteBuffer rec) {
+    // expiry of a framed record, 0 for none
+    return ((rec.getInt(0) & TTL_FLAG) != 0) ? rec.getLong(Integer.BYTES) : 0;
+  }
+
+  private long expiry(long ttl, TimeUnit units) {
+    // expiry millis for a ttl from now
+    if (ttl <= 0) {
+      throw new IllegalArgumentException("Time to live must be positive: " + ttl);
+    }
+    return clock.getAsLong() + units.toMillis(ttl);
+  }
+
+  private static boolean isExpired(long expires, long now) {
+    return expires != 0 && expires <= now;
+  }
+
+  private ByteBuffer encode(K key, V v) throws IOException {
+    if (keys == null) {
+      ByteBuffer payload = encoder.encode(key, v);
+      ByteBuffer z = deflate(payload);
+      return (z != null) ? z : frame(payload, 0);
+    }
+    // codecs write in place: [key][present byte][value]
+    long size = (long) keys.size(key) + 1 + (v == null ? 0 : values.size(v));
+    if (size > LEN_MASK) {
+      throw new IOException("Record too large: " + size);
+    }
+    ByteBuffer rec = ByteBuffer.allocate(Integer.BYTES + (int) size + Integer.BYTES);
+    rec.putInt((int) size);
+    keys.encode(key, rec);
+    rec.put((byte) (v == null ? 0 : 1));
+    if (v != null) {
+      values.encode(v, rec);
+    }
+    if (rec.position() != Integer.BYTES + size) {
+      throw new IOException("Codec wrote " + (rec.position() - Integer.BYTES) + " bytes, sized " + size);
+    }
+    ByteBuffer z = deflate(ByteBuffer.wrap(rec.array(), Integer.BYTES, (int) size));
+    if (z != null) {
+      return z;
+    }
+    rec.putInt(digest(rec.array(), Integer.BYTES, (int) size));
+    rec.flip();
+    return rec;
+  }
+
+  private int digest(byte[] b, int off, int len) {
+    // masked checksum; each thread has its own, no lock
+    Checksum c = digests.get();
+    c.reset();
+    c.update(b, off, len);
+    return (int) (c.getValue() & DIGEST_MASK);
+  }
+
+  private int digest(ByteBuffer b) {
+    // masked checksum of the buffer's remaining bytes, leaving it as it was
+    if (b.hasArray()) {
+      return digest(b.array(), b.arrayOffset() + b.position(), b.remaining());
+    }
+    Checksum c = digests.get();
+    c.reset();
+    if (c instanceof CRC32) {
+      ((CRC32) c).update(b.duplicate());
+    } else if (UPDATE_BUFFER != null) {
+      try {
+        UPDATE_BUFFER.invokeExact(c, b.duplicate());
+      } catch (Throwable t) {
+        throw new IllegalStateException(t);
+      }
+    } else {
+      ByteBuffer dup = b.duplicate();
+      byte[] tmp = new byte[Math.min(dup.remaining(), 8 * 1024)];
+      while (dup.hasRemaining()) {
+        int n = Math.min(tmp.length, dup.remaining());
+        dup.get(tmp, 0, n);
+        c.update(tmp, 0, n);
+      }
+    }
+    return (int) (c.getValue() & DIGEST_MASK);
+  }
+
+  private ByteBuffer frame(ByteBuffer payload, int flags) throws IOException {
+    if (payload.remaining() > LEN_MASK) {
+      throw new IOException("Record too large: " + payload.remaining());
+    }
+    ByteBuffer rec = ByteBuffer.allocate(Integer.BYTES + payload.remaining() + Integer.BYTES);
+    rec.putInt(payload.remaining() | flags);
+    int d = digest(payload);
+    rec.put(payload);
+    rec.putInt(d);
+    rec.flip();
+    return rec;
+  }
+
+  private ByteBuffer deflate(ByteBuffer payload) throws IOException {
+    // a whole compressed record for this payload, or null if compression is off or doesn't pay
+    int len = payload.remaining();
+    if (compression == 0 || len < MIN_DEFLATE) {
+      return null;
+    }
+    long t0 = System.nanoTime();
+    Deflater d = deflaters.poll();
+    if (d == null) {
+      d = new Deflater(compression);
+    }
+    // give up as soon as it is no smaller than the plain record
+    int room = len - Integer.BYTES - 1;
+    byte[] out = new byte[Integer.BYTES + Integer.BYTES + room + Integer.BYTES];
+    int n = 0;
+    boolean won;
+    try {
+      if (dictionary != null) {
+        d.setDictionary(dictionary);
+      }
+      if (payload.hasArray()) {
+        d.setInput(payload.array(), payload.arrayOffset() + payload.position(), len);
+      } else {
+        d.setInput(bytes(payload));
+      }
+      d.finish();
+      while (!d.finished() && n < room) {
+        n += d.deflate(out, Integer.BYTES * 2 + n, room - n);
+      }
+      won = d.finished();
+    } finally {
+      giveBack(d);
+    }
+    int stored = won ? Integer.BYTES + n : len;
+    rawBytes.add(len);
+    storedBytes.add(stored);
+    deflateNanos.add(System.nanoTime() - t0);
+    if (!won) {
+      return null;
+    }
+    ByteBuffer rec = ByteBuffer.wrap(out, 0, Integer.BYTES + stored + Integer.BYTES);
+    rec.putInt(0, stored | ZIP_FLAG);
+    rec.putInt(Integer.BYTES, len);
+    rec.putInt(Integer.BYTES + stored, digest(out, Integer.BYTES, stored));
+    return rec;
+  }
+
+  private ByteBuffer inflate(ByteBuffer stored) throws IOException {
+    // payload + 4 spare bytes, like readRecord() hands out, from a compressed one
+    long t0 = System.nanoTime();
+    int len = stored.getInt(0);
+    int zlen = stored.remaining() - Integer.BYTES * 2;
+    if (len < 0 || len > LEN_MASK || zlen < 0) {
+      throw new IOException("Bad compressed record");
+    }
+    Inflater inf = inflaters.poll();
+    if (inf == null) {
+      inf = new Inflater();
+    }
+    byte[] out = new byte[len + Integer.BYTES];
+    int n = 0;
+    boolean wanted;
+    try {
+      if (stored.hasArray()) {
+        inf.setInput(stored.array(), stored.arrayOffset() + stored.position() + Integer.BYTES, zlen);
+      } else {
+        byte[] z = new byte[zlen];
+        ByteBuffer dup = stored.duplicate();
+        dup.position(dup.position() + Integer.BYTES);
+        dup.get(z);
+        inf.setInput(z);
+      }
+      while (n < len) {
+        int got = inf.inflate(out, n, len - n);
+        if (got == 0) {
+          if (!inf.needsDictionary() || dictionary == null) {
+            break;
+          }
+          inf.setDictionary(dictionary);
+        }
+        n += got;
+      }
+      wanted = inf.needsDictionary();
+    } catch (DataFormatException e) {
+      throw new IOException(e);
+    } finally {
+      giveBack(inf);
+    }
+    if (n != len) {
+      throw new IOException("Bad compressed record" + (wanted ? "; needs a dictionary" : ""));
+    }
+    inflateNanos.add(System.nanoTime() - t0);
+    return ByteBuffer.wrap(out);
+  }
+
+  private void giveBack(Deflater d) {
+    // keep a few for reuse; end the rest now rather than holding zlib memory until finalization
+    if (deflaters.size() < ZIP_POOL) {
+      d.reset();
+      deflaters.offer(d);
+    } else {
+      d.end();
+    }
+  }
+
+  private void giveBack(Inflater inf) {
+    if (inflaters.size() < ZIP_POOL) {
+      inf.reset();
+      inflaters.offer(inf);
+    } else {
+      inf.end();
+    }
+  }
+
+  private void endZips() {
+    for (Deflater d = deflaters.poll(); d != null; d = deflaters.poll()) {
+      d.end();
+    }
+    for (Inflater inf = inflaters.poll(); inf != null; inf = inflaters.poll()) {
+      inf.end();
+    }
+  }
+
+  private synchronized long append(K key, ByteBuffer rec, boolean tomb) throws IOException {
+    // core append path for all mutations; rec comes from frame()
+    roomFor(rec.remaining());
+    return appendHere(key, rec, tomb);
+  }
+
+  private void roomFor(long fp) throws IOException {
+    // roll first, if these bytes would overflow the segment
+    if (segmentSize > 0 && currentWritePos > HDR.length && currentWritePos + fp > segmentSize) {
+      roll();
+    }
+  }
+
+  private long appendHere(K key, ByteBuffer rec, boolean tomb) throws IOException {
+    // append to the active segment, no rolling; a null key is a batch header
+    int fp = rec.remaining();
+    // return the current write pos
+    long ret = address(active.id, currentWritePos);
+    write(rec.duplicate());
+    bytesAppended.add(fp);
+    if (active.log != null) {
+      active.log.add(new HintRec<>(key, currentWritePos, fp, tomb, expiryOf(rec)));
+    }
+    this.currentWritePos = currentWritePos + fp;
+    appended++;
+    active.entries++;
+    entriesOnDisk++;
+    if (compactTail != null && key != null) {
+      // compaction will need to remap this one.
+      compactTail.add(key);
+    }
+    return ret;
+  }
+
+  private int recordSize(long addr) throws IOException {
+    // full on disk size of the record at addr, read from the write buffer if unflushed
+    Segment seg = segmentFor(addr);
+    long off = offsetOf(addr);
+    if (seg == active && off >= nextWritePos) {
+      return (writeBuffer.getInt((int) (off - nextWritePos)) & LEN_MASK) + Integer.BYTES + Integer.BYTES;
+    }
+    ByteBuffer tmp = ByteBuffer.allocate(Integer.BYTES);
+    readFully(seg.fc, off, tmp);
+    return (tmp.getInt(0) & LEN_MASK) + Integer.BYTES + Integer.BYTES;
+  }
+
+  private synchronized void died(long addr) throws IOException {
+    died(addr, recordSize(addr));
+  }
+
+  private synchronized void died(long addr, int size) throws IOException {
+    // record at addr is no longer referenced; account for it.
+    Segment seg = segmentFor(addr);
+    seg.dead = seg.dead + size;
+    if (seg == compactSrc && offsetOf(addr) >= compactEnd) {
+      compactTailDead = compactTailDead + size;
+    }
+  }
+
+  private void write(ByteBuffer rec) throws IOException {
+    // write the record into the buffer, flushing if necessary
+    int fp = rec.remaining();
+    if (writeBuffer.capacity() < fp) {
+      // can't use the write buffer, flush pending and write it explicitly.
+      flushBuffer();
+      flushSizes.record(fp);
+      writeFully(active.fc, rec, nextWritePos);
+      nextWritePos = nextWritePos + fp;
+    } else {
+      if (writeBuffer.remaining() < fp) {
+        // no room at the inn. flush and go.
+        flushBuffer();
+      }
+      // actually append it to the buffer, inc the counter.
+      writeBuffer.put(rec);
+      pendingWrites++;
+    }
+  }
+
+  private synchronized Long publish(K key, ByteBuffer rec, V v, Object[] attrs) throws IOException {
+    // append a framed record of v (null for a removal) and point the index at it; returns the prior address
+    return point(key, append(key, rec, v == null), v, expiryOf(rec), attrs);
+  }
+
+  private Long point(K key, long addr, V v, long expires, Object[] attrs) throws IOException {
+    // index updates, secondary ones too, for a record of v just appended at addr; attrs from attributes(v)
+    boolean tomb = v == null;
+    changing(key);
+    Long prior = tomb ? map.remove(key) : map.put(key, addr);
+    expiring(key, tomb ? 0 : expires);
+    int i = 0;
+    for (Secondary ix : secondaries.values()) {
+      ix.update(key, (attrs == null) ? null : attrs[i]);
+      i++;
+    }
+    if (prior != null) {
+      died(prior);
+      if (cache != null) {
+        cache.remove(prior);
+      }
+    }
+    if (tomb) {
+      // the tombstone itself is dead on arrival
+      died(addr);
+    }
+    return prior;
+  }
+
+  private void apply(WriteBatch batch) throws IOException {
+    // header (count, bytes to follow), then the records back to back in one segment
+    if (batch.keys.isEmpty()) {
+      return;
+    }
+    ByteBuffer payload = ByteBuffer.allocate(Integer.BYTES + Long.BYTES);
+    payload.putInt(batch.keys.size()).putLong(batch.bytes).flip();
+    ByteBuffer hdr = frame(payload, BATCH_FLAG);
+    synchronized (this) {
+      roomFor(BATCH_HDR_SIZE + batch.bytes);
+      died(appendHere(null, hdr, true), BATCH_HDR_SIZE);
+      for (int i = 0; i < batch.keys.size(); i++) {
+        K key = batch.keys.get(i);
+        V v = batch.values.get(i);
+        ByteBuffer rec = batch.recs.get(i);
+        point(key, appendHere(key, rec, v == null), v, expiryOf(rec), batch.attrs.get(i));
+      }
+    }
+    commit();
+  }
+
+  private synchronized boolean publishIf(K key, Long expect, ByteBuffer rec, V v, Object[] attrs)
+    throws IOException {
+    // publish only if the key still maps to expect (null for absent); the write half of a CAS
+    if (!Objects.equals(map.get(key), expect)) {
+      return false;
+    }
+    publish(key, rec, v, attrs);
+    return true;
+  }
+
+  private V valueAt(long addr) throws IOException {
+    // value of the record at addr, from the cache if there is one
+    if (cache == null) {
+      return fetch(addr, verifyOnRead, null).getValue();
+    }
+    V v = cache.get(addr);
+    if (v == null) {
+      ByteBuffer raw = readRecord(addr, verifyOnRead, null);
+      v = decode(raw).getValue();
+      cache.put(addr, v, raw.remaining() + Integer.BYTES);
+    }
+    return v;
+  }
+
+  private Entry<Long, V> current(Object key) throws IOException {
+    // a consistent address + value pair for key, or null if absent
+    for (; ; ) {
+      Long addr = map.get(key);
+      if (addr == null || expire(key, addr)) {
+        return null;
+      }
+      try {
+        return new SimpleImmutableEntry<>(addr, valueAt(addr));
+      } catch (IOException e) {
+        // compaction may have moved it out from under us; if so, go again.
+        if (addr.equals(map.get(key))) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  private void changing(K key) {
+    // under the lock, before key's index entry changes: open read views keep what it was
+    if (!views.isEmpty()) {
+      Long addr = map.get(key);
+      long expires = expiresAt(key);
+      for (ReadView v : views) {
+        v.changing(key, addr, expires);
+      }
+    }
+  }
+
+  private void expiring(K key, long expires) {
+    // track key's expiry, if it has one; skip the work while nothing expires
+    if (expires != 0) {
+      ttls.put(key, expires);
+    } else if (!ttls.isEmpty()) {
+      ttls.remove(key);
+    }
+  }
+
+  private long expiresAt(Object key) {
+    // expiry millis for key, 0 for none
+    Long ret = ttls.isEmpty() ? null : ttls.get(key);
+    return (ret == null) ? 0 : ret;
+  }
+
+  private boolean expired(Object key) {
+    return isExpired(expiresAt(key), clock.getAsLong());
+  }
+
+  @SuppressWarnings("unchecked")
+  private boolean expire(Object key, Long addr) throws IOException {
+    // drop key from the index if it is at addr and has expired; true if it is gone.
+    // no record is written: on restart the record is expired anyway.
+    if (!expired(key)) {
+      return false;
+    }
+    synchronized (this) {
+      Long cur = map.get(key);
+      if (cur == null) {
+        // reaped meanwhile
+        return true;
+      }
+      if (!addr.equals(cur) || !expired(key)) {
+        return false;
+      }
+      K k = (K) key;
+      changing(k);
+      map.remove(k);
+      ttls.remove(k);
+      for (Secondary ix : secondaries.values()) {
+        ix.update(k, null);
+      }
+      died(addr);
+      if (cache != null) {
+        cache.remove(addr);
+      }
+      expired.increment();
+      return true;
+    }
+  }
+
+  private static void writeFully(FileChannel fc, ByteBuffer b, long pos) throws IOException {
+    while (b.hasRemaining()) {
+      int wrote = fc.write(b, pos);
+      pos = pos + wrote;
+    }
+  }
+
+  /**
+   * Number of entries actually on the disk, even if invalid.
+   * @return number of entries on disk, live and dead.
+   */
+  public long entriesOnDisk() {
+    return entriesOnDisk;
+  }
+
+  /**
+   * File being used. For the segmented layout, this is the directory.
+   * @return file
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Number of segment files in the log; always 1 for the single file layout.
+   * @return segment count
+   */
+  public int segmentCount() {
+    return order.size();
+  }
+
+  /**
+   * File footprint on disk.
+   * @return file size
+   * @throws IOException on exception
+   */
+  public long bytesOnDisk() throws IOException {
+    flushBuffer();
+    long ret = 0;
+    for (Segment seg : order) {
+      ret = ret + seg.fc.size();
+    }
+    return ret;
+  }
+
+  /**
+   * Bytes in the log held by records which are no longer referenced; overwritten
+   * or removed entries. This is what compaction will reclaim.
+   * @return dead bytes
+   */
+  public synchronized long deadBytes() {
+    return order.stream().mapToLong(s -> s.dead).sum();
+  }
+
+  /**
+   * Bytes in the log held by live records.
+   * @return live bytes
+   */
+  public synchronized long liveBytes() {
+    return logBytes() - deadBytes();
+  }
+
+  private synchronized long logBytes() {
+    long ret = 0;
+    for (Segment seg : order) {
+      ret = ret + ((seg == active) ? currentWritePos : seg.end) - HDR.length;
+    }
+    return ret;
+  }
+
+  /**
+   * Fraction of the log which is dead, 0.0 to 1.0. Useful for deciding when to compact.
+   * @return dead/(live+dead) ratio
+   */
+  public synchronized double deadRatio() {
+    long total = logBytes();
+    return total == 0 ? 0.0d : ((double) deadBytes()) / total;
+  }
+
+  /**
+   * Rewrite the log, keeping only live records. The live records are copied to new
+   * files without holding the map lock, so writers keep appending while this runs.
+   * <p>For the single file layout, at the end the records written meanwhile are
+   * copied over, addresses are swapped, and the new file replaces the old one.
+   * <p>For the segmented layout, the active segment is sealed, and the sealed
+   * segments from the first one holding any dead records on are rewritten into
+   * new segments, which take their place in the manifest; the old segment files
+   * are then deleted whole. Writers are never blocked on the copy.
+   * @return false, doing nothing, if a compaction was already running or any
+   * read view or backup holds the log's files (see pinned()).
+   * @throws IOException on exception. The original files are left intact.
+   */
+  public boolean compact() throws IOException {
+    return (segmentSize > 0) ? compactSegments() : compactSingle();
+  }
+
+  /**
+   * Copies raw records into one or more new files, rolling at the segment size.
+   */
+  private class Copier {
+    private final ArrayList<Segment> made = new ArrayList<>();
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(writeBuffer.capacity());
+    private final ByteBuffer tmp = ByteBuffer.allocate(Integer.BYTES);
+    private final ArrayList<K> keys = new ArrayList<>();
+    private final ArrayList<long[]> moves = new ArrayList<>();
+    private final Callable<Segment> maker;
+    private Segment seg;
+    private long bufStart = HDR.length;
+
+    Copier(Callable<Segment> maker) {
+      this.maker = maker;
+    }
+
+    void copy(K key, long addr) throws IOException {
+      Segment src = segmentFor(addr);
+      tmp.clear();
+      readFully(src.fc, offsetOf(addr), tmp);
+      int size = (tmp.getInt(0) & LEN_MASK) + Integer.BYTES + Integer.BYTES;
+      long at = bufStart + buf.position();
+      if (seg == null || (segmentSize > 0 && at > HDR.length && at + size > segmentSize)) {
+        next();
+      } else if (buf.remaining() < size) {
+        drain();
+      }
+      long to = address(seg.id, bufStart + buf.position());
+      if (buf.capacity() < size) {
+        ByteBuffer big = ByteBuffer.allocate(size);
+        readFully(src.fc, offsetOf(addr), big);
+        big.flip();
+        writeFully(seg.fc, big, bufStart);
+        bufStart = bufStart + size;
+      } else {
+        ByteBuffer slice = buf.duplicate();
+        slice.limit(buf.position() + size);
+        readFully(src.fc, offsetOf(addr), slice);
+        buf.position(buf.position() + size);
+      }
+      seg.entries++;
+      keys.add(key);
+      moves.add(new long[] { addr, to, size });
+    }
+
+    private void drain() throws IOException {
+      buf.flip();
+      writeFully(seg.fc, buf, bufStart);
+      bufStart = bufStart + buf.limit();
+      buf.clear();
+    }
+
+    private void next() throws IOException {
+      if (seg != null) {
+        finish();
+      }
+      try {
+        seg = maker.call();
+      } catch (IOException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+      made.add(seg);
+      bufStart = HDR.length;
+    }
+
+    long finish() throws IOException {
+      if (seg == null) {
+        return HDR.length;
+      }
+      drain();
+      seg.end = bufStart;
+      force(seg.fc);
+      return bufStart;
+    }
+
+    void publish() throws IOException {
+      // anything written in the meantime makes the CAS fail, leaving a dead record.
+      made.forEach(s -> segments.put(s.id, s));
+      for (int i = 0; i < keys.size(); i++) {
+        long[] m = moves.get(i);
+        if (!map.replace(keys.get(i), m[0], m[1])) {
+          synchronized (ChiseledMap.this) {
+            segmentFor(m[1]).dead = segmentFor(m[1]).dead + recordSize(m[1]);
+          }
+        }
+      }
+    }
+
+    void writeHints() throws IOException {
+      // copies are all puts, so each new segment's hint is just its moves.
+      for (Segment s : made) {
+        ArrayList<HintRec<K>> recs = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+          long[] m = moves.get(i);
+          if (segmentOf(m[1]) == s.id) {
+            recs.add(new HintRec<>(keys.get(i), offsetOf(m[1]), (int) m[2], false, expiresAt(keys.get(i))));
+          }
+        }
+        writeHint(s, s.end, s.entries, -1, recs);
+      }
+    }
+
+    void abandon() throws IOException {
+      // put back any addresses we moved, then drop the copies
+      for (int i = 0; i < moves.size(); i++) {
+        long[] m = moves.get(i);
+        map.replace(keys.get(i), m[1], m[0]);
+      }
+      for (Segment s : made) {
+        segments.remove(s.id);
+        s.fc.close();
+        Files.deleteIfExists(s.file.toPath());
+        Files.deleteIfExists(hintFile(s).toPath());
+      }
+    }
+  }
+
+  private boolean compactSingle() throws IOException {
+    File tmpFile = new File(file.getPath() + ".compact");
+    Segment src;
+    long end;
+    long entriesAtStart;
+    synchronized (this) {
+      if (compacting) {
+        return false;
+      }
+      flushBuffer();
+      Files.deleteIfExists(tmpFile.toPath());
+      src = active;
+      end = currentWritePos;
+      entriesAtStart = entriesOnDisk;
+      compacting = true;
+      compactSrc = src;
+      compactEnd = end;
+      compactTailDead = 0;
+      compactTail = new ArrayList<>();
+    }
+    Copier copier = new Copier(() -> {
+      Segment seg = new Segment(nextSegmentId(), tmpFile, FileChannel.open(tmpFile.toPath(), CREATE_NEW, READ, WRITE));
+      writeHeader(seg.fc);
+      return seg;
+    });
+    try {
+      for (Entry<K, Long> ent : map) {
+        long addr = ent.getValue();
+        if (segmentOf(addr) == src.id && offsetOf(addr) < end) {
+          copier.copy(ent.getKey(), addr);
+        }
+      }
+      if (copier.seg == null) {
+        copier.next();
+      }
+      Segment dest = copier.seg;
+      long destPos = copier.finish();
+      copier.publish();
+      synchronized (this) {
+        // now the tail written while we copied; writers wait for this part only.
+        flushBuffer();
+        long tailLen = currentWritePos - end;
+        long destEnd = transferFully(src.fc, end, tailLen, dest.fc, destPos);
+        for (K k : compactTail) {
+          Long a = map.get(k);
+          if (a != null && segmentOf(a) == src.id && offsetOf(a) >= end) {
+            map.put(k, address(dest.id, offsetOf(a) - end + destPos));
+          }
+        }
+        dest.dead = dest.dead + compactTailDead;
+        force(dest.fc);
+        // the old hint describes the old file; lose it first.
+        Files.deleteIfExists(hintFile(src).toPath());
+        Files.move(tmpFile.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        dest.file = file;
+        currentWritePos = destEnd;
+        nextWritePos = destEnd;
+        active = dest;
+        order = new ArrayList<>(Collections.singletonList(dest));
+        dest.entries = dest.entries + (entriesOnDisk - entriesAtStart);
+        entriesOnDisk = dest.entries;
+        segments.remove(src.id);
+        compacted();
+        compactSrc = null;
+        compactTail = null;
+      }
+      closeQuietly(src);
+      return true;
+    } catch (IOException | RuntimeException e) {
+      synchronized (this) {
+        copier.abandon();
+        compacted();
+        compactSrc = null;
+        compactTail = null;
+      }
+      throw e;
+    }
+  }
+
+  private boolean compactSegments() throws IOException {
+    List<Segment> range;
+    synchronized (this) {
+      if (compacting) {
+        return false;
+      }
+      if (currentWritePos > HDR.length) {
+        roll();
+      }
+      List<Segment> sealed = order.subList(0, order.size() - 1);
+      int first = 0;
+      // a leading run of fully live segments can stay as is.
+      while (first < sealed.size() && sealed.get(first).dead == 0) {
+        first++;
+      }
+      range = new ArrayList<>(sealed.subList(first, sealed.size()));
+      if (range.isEmpty()) {
+        return true;
+      }
+      compacting = true;
+    }
+    Copier copier = new Copier(() -> newSegmentSync());
+    try {
+      Set<Integer> ids = range.stream().map(s -> s.id).collect(Collectors.toSet());
+      for (Entry<K, Long> ent : map) {
+        if (ids.contains(segmentOf(ent.getValue()))) {
+          copier.copy(ent.getKey(), ent.getValue());
+        }
+      }
+      copier.finish();
+      if (hints) {
+        copier.writeHints();
+      }
+      copier.publish();
+      synchronized (this) {
+        // swap the copies in for the range, in the same spot in log order.
+        ArrayList<Segment> next = new ArrayList<>(order);
+        int at = next.indexOf(range.get(0));
+        next.removeAll(range);
+        next.addAll(at, copier.made);
+        writeManifest(next);
+        order = next;
+        for (Segment s : range) {
+          entriesOnDisk = entriesOnDisk - s.entries;
+          segments.remove(s.id);
+        }
+        for (Segment s : copier.made) {
+          entriesOnDisk = entriesOnDisk + s.entries;
+        }
+        compacted();
+      }
+      for (Segment s : range) {
+        closeQuietly(s);
+        Files.deleteIfExists(s.file.toPath());
+        Files.deleteIfExists(hintFile(s).toPath());
+      }
+      return true;
+    } catch (IOException | RuntimeException e) {
+      synchronized (this) {
+        copier.abandon();
+        compacted();
+      }
+      throw e;
+    }
+  }
+
+  private synchronized void pin() throws IOException {
+    // keep every file in the log where it is; waits out a running compaction, not other pins
+    while (compacting && pins == 0) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+    compacting = true;
+    pins++;
+  }
+
+  private synchronized void unpin() {
+    if (--pins == 0) {
+      compacted();
+    }
+  }
+
+  private synchronized void compacted() {
+    // compaction is done, or the last pin is gone
+    compacting = false;
+    notifyAll();
+  }
+
+  /**
+   * Point in time backup of the live records, to a new single file log that
+   * opens like any other (same comparator, codecs and so on; no segmentSize).
+   * Writers wait only while the index is read into a list of addresses; the
+   * records are then copied as they are, in file order, on the background
+   * thread, while writes go on. Until the copy is done compact() returns false,
+   * so compactWhen() skips its runs (see compactionsSkipped()) through a long
+   * backup.
+   * @param dest new file
+   * @return future for the log position the backup is current to; hand it
+   * to backupSince() for the next one
+   * @throws IOException on exception
+   */
+  public Future<Long> backup(File dest) throws IOException {
+    long[] addrs;
+    long pos;
+    pin();
+    try {
+      synchronized (this) {
+        flushBuffer();
+        pos = address(active.id, currentWritePos);
+        addrs = new long[map.size()];
+        int n = 0;
+        for (Entry<K, Long> e : map) {
+          if (n == addrs.length) {
+            addrs = Arrays.copyOf(addrs, n * 2 + 1);
+          }
+          addrs[n++] = e.getValue();
+        }
+        addrs = Arrays.copyOf(addrs, n);
+      }
+      Arrays.sort(addrs);
+      long[] sorted = addrs;
+      return background().submit(() -> {
+        try {
+          copyRecords(sorted, dest);
+          return pos;
+        } finally {
+          unpin();
+        }
+      });
+    } catch (IOException | RuntimeException e) {
+      unpin();
+      throw e;
+    }
+  }
+
+  /**
+   * Incremental backup: append to dest, a backup of this map, the log as
+   * written since the given position, removals and batches included; opening
+   * dest replays them over what it had. Writers wait only for the buffer to be
+   * flushed; the bytes are copied on the background thread, and until they
+   * are compact() returns false, as for backup(). Fails if compaction has since
+   * rewritten the file holding the position; take a full backup() then.
+   * @param dest file a previous backup went to
+   * @param since position from that backup
+   * @return future for the new position
+   * @throws IOException on exception
+   */
+  public Future<Long> backupSince(File dest, long since) throws IOException {
+    List<long[]> runs = new ArrayList<>();
+    long pos;
+    pin();
+    try {
+      synchronized (this) {
+        flushBuffer();
+        pos = address(active.id, currentWritePos);
+        Segment from = segments.get(segmentOf(since));
+        int at = order.indexOf(from);
+        if (at < 0 || offsetOf(since) < HDR.length || offsetOf(since) > (from == active ? currentWritePos : from.end)) {
+          throw new IOException("Backup position is no longer in the log: " + Long.toHexString(since));
+        }
+        for (Segment seg : order.subList(at, order.size())) {
+          long start = (seg == from) ? offsetOf(since) : HDR.length;
+          long end = (seg == active) ? currentWritePos : seg.end;
+          runs.add(new long[] { seg.id, start, end - start });
+        }
+      }
+      return background().submit(() -> {
+        try {
+          appendRuns(runs, dest);
+          return pos;
+        } finally {
+          unpin();
+        }
+      });
+    } catch (IOException | RuntimeException e) {
+      unpin();
+      throw e;
+    }
+  }
+
+  private void copyRecords(long[] addrs, File dest) throws IOException {
+    // raw copies of the records at these addresses, in order, into a new log
+    try (FileChannel out = FileChannel.open(dest.toPath(), CREATE_NEW, READ, WRITE)) {
+      writeHeader(out);
+      ByteBuffer buf = ByteBuffer.allocateDirect(writeBuffer.capacity());
+      ByteBuffer tmp = ByteBuffer.allocate(Integer.BYTES);
+      long outPos = HDR.length;
+      for (long addr : addrs) {
+        Segment seg = segmentFor(addr);
+        tmp.clear();
+        readFully(seg.fc, offsetOf(addr), tmp);
+        int size = (tmp.getInt(0) & LEN_MASK) + Integer.BYTES + Integer.BYTES;
+        if (buf.remaining() < size) {
+          buf.flip();
+          int n = buf.remaining();
+          writeFully(out, buf, outPos);
+          outPos = outPos + n;
+          buf.clear();
+        }
+        if (buf.capacity() < size) {
+          outPos = transferFully(seg.fc, offsetOf(addr), size, out, outPos);
+        } else {
+          ByteBuffer slice = buf.duplicate();
+          slice.limit(buf.position() + size);
+          readFully(seg.fc, offsetOf(addr), slice);
+          buf.position(buf.position() + size);
+        }
+      }
+      buf.flip();
+      writeFully(out, buf, outPos);
+      out.force(false);
+    }
+  }
+
+  private void appendRuns(List<long[]> runs, File dest) throws IOException {
+    // the log bytes in each (segment, offset, length) run, on the end of dest
+    try (FileChannel out = FileChannel.open(dest.toPath(), READ, WRITE)) {
+      ByteBuffer hdr = ByteBuffer.allocate(HDR.length);
+      readFully(out, 0, hdr);
+      hdr.flip();
+      if (hdr.compareTo(ByteBuffer.wrap(crc32c ? HDR_CRC32C : HDR)) != 0) {
+        throw new IOException("Not a backup of this map: " + dest);
+      }
+      long outPos = out.size();
+      for (long[] r : runs) {
+        outPos = transferFully(segments.get((int) r[0]).fc, r[1], r[2], out, outPos);
+      }
+      out.force(false);
+    }
+  }
+
+  private synchronized int nextSegmentId() {
+    return nextSegmentId++;
+  }
+
+  private synchronized Segment newSegmentSync() throws IOException {
+    return newSegment();
+  }
+
+  private static void closeQuietly(Segment seg) {
+    try {
+      seg.fc.close();
+    } catch (IOException e) {
+      // already swapped out, nothing to be done.
+    }
+  }
+
+  private static long transferFully(FileChannel src, long pos, long len, FileChannel dest, long destPos)
+    throws IOException {
+    // positional copy of a run of bytes from one channel to another
+    ByteBuffer b = ByteBuffer.allocateDirect((int) Math.min(Math.max(len, 1), 1024 * 1024));
+    long left = len;
+    while (left > 0) {
+      b.clear();
+      b.limit((int) Math.min(b.capacity(), left));
+      readFully(src, pos, b);
+      b.flip();
+      writeFully(dest, b, destPos);
+      pos = pos + b.limit();
+      destPos = destPos + b.limit();
+      left = left - b.limit();
+    }
+    return destPos;
+  }
+
+  /**
+   * Start a background thread which checks every so often, and compacts once
+   * the dead ratio is at least the specified value. Replaces any prior schedule.
+   * @param deadRatio ratio at which to compact, 0.0-1.0
+   * @param every check interval
+   * @param units units for interval
+   */
+  public synchronized void compactWhen(double deadRatio, long every, TimeUnit units) {
+    stopCompacting();
+    compactTask = background().scheduleWithFixedDelay(() -> {
+      try {
+        if (deadRatio() >= deadRatio && !compact()) {
+          compactionsSkipped.increment();
+        }
+      } catch (IOException | RuntimeException e) {
+        // leave the log as is; try again next time.
+      }
+    }, every, every, units);
+  }
+
+  /**
+   * Read views and backups in progress, holding the log's files in place; while
+   * any are, compact() returns false.
+   * @return pin count
+   */
+  public synchronized int pinned() {
+    return pins;
+  }
+
+  /**
+   * Runs of the compactWhen() compactor that found the dead ratio reached but
+   * could not compact, as a compaction, read view or backup held the log.
+   * @return skipped run count
+   */
+  public long compactionsSkipped() {
+    return compactionsSkipped.sum();
+  }
+
+  /**
+   * Stop the background compactor, if any.
+   */
+  public synchronized void stopCompacting() {
+    if (compactTask != null) {
+      compactTask.cancel(false);
+      compactTask = null;
+    }
+  }
+
+  /**
+   * Write out the write buffer every so often, if anything is in it. Reads
+   * no longer force the buffer out, so without this (or an explicit flush())
+   * buffered records only reach the file when the buffer fills. This is a
+   * write, not an fsync. Replaces any prior schedule.
+   * @param every flush interval, 0 to stop
+   * @param units units for interval
+   */
+  public synchronized void flushEvery(long every, TimeUnit units) {
+    if (flushTask != null) {
+      flushTask.cancel(false);
+      flushTask = null;
+    }
+    if (every > 0) {
+      flushTask = background().scheduleWithFixedDelay(() -> {
+        try {
+          if (pendingWrites > 0) {
+            flushBuffer();
+          }
+        } catch (IOException | RuntimeException e) {
+          // writes will retry the flush, and report it.
+        }
+      }, every, every, units);
+    }
+  }
+
+  /**
+   * Open a read view of the map as it is now. Writers wait only while it is
+   * registered. Until it is closed compact() returns false, so compactWhen()
+   * skips its runs; close views promptly.
+   * @return new read view, to be closed
+   * @throws IOException on exception
+   */
+  public ReadView readView() throws IOException {
+    pin();
+    synchronized (this) {
+      ReadView ret = new ReadView(address(active.id, currentWritePos), clock.getAsLong());
+      views.add(ret);
+      return ret;
+    }
+  }
+
+  /**
+   * Drop every expired entry from the index now, counting their records as
+   * dead for compaction.
+   * @return number of entries dropped
+   * @throws IOException on exception
+   */
+  public int reap() throws IOException {
+    int ret = 0;
+    long now = clock.getAsLong();
+    for (Entry<K, Long> ent : ttls.entrySet()) {
+      if (isExpired(ent.getValue(), now)) {
+        Long addr = map.get(ent.getKey());
+        if (addr != null && expire(ent.getKey(), addr)) {
+          ret++;
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Reap expired entries in the background every so often. Replaces any prior
+   * schedule.
+   * @param every reap interval, 0 to stop
+   * @param units units for interval
+   */
+  public synchronized void reapEvery(long every, TimeUnit units) {
+    if (reapTask != null) {
+      reapTask.cancel(false);
+      reapTask = null;
+    }
+    if (every > 0) {
+      reapTask = background().scheduleWithFixedDelay(() -> {
+        try {
+          reap();
+        } catch (IOException | RuntimeException e) {
+          // try again next time.
+        }
+      }, every, every, units);
+    }
+  }
+
+  private synchronized ScheduledExecutorService background() {
+    // one daemon thread for compaction and hint writing
+    if (background == null) {
+      background = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ChiseledMap background: " + file.getName());
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return background;
+  }
+
+  /**
+   * Close this TinyKVMap.
+   * @throws IOException on exception
+   */
+  public void close() throws IOException {
+    ScheduledExecutorService c;
+    synchronized (this) {
+      stopCompacting();
+      flushEvery(0, TimeUnit.MILLISECONDS);
+      reapEvery(0, TimeUnit.MILLISECONDS);
+      if (syncTask != null) {
+        syncTask.cancel(false);
+        syncTask = null;
+      }
+      c = background;
+      background = null;
+    }
+    if (c != null) {
+      c.shutdown();
+      try {
+        // let a running compaction or hint finish before pulling the file away
+        c.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (this) {
+      flushBuffer();
+      if (hints || durability != Durability.NONE) {
+        force(active.fc);
+        writeActiveHint();
+      }
+      for (Segment seg : order) {
+        seg.fc.close();
+      }
+      map.clear();
+      ttls.clear();
+      views.clear();
+      secondaries.values().forEach(Secondary::clear);
+      if (cache != null) {
+        cache.clear();
+      }
+      endZips();
+    }
+  }
+
+  /**
+   * Keys whose values have this attribute in the named secondary index, in key
+   * order. Answered from memory; no values are read.
+   * @param index index name
+   * @param attribute attribute value
+   * @return keys, a snapshot
+   */
+  public NavigableSet<K> lookupKeys(String index, Object attribute) {
+    Set<K> got = secondary(index).keys.get(attribute);
+    TreeSet<K> ret = new TreeSet<>(comp);
+    if (got != null) {
+      ret.addAll(got);
+    }
+    return ret;
+  }
+
+  /**
+   * Entries whose values have this attribute in the named secondary index, in
+   * key order. The keys come from the index; the values are read in file order,
+   * and any changed meanwhile to no longer match are left out.
+   * @param index index name
+   * @param attribute attribute value
+   * @return entries, a snapshot
+   */
+  public NavigableMap<K, V> lookup(String index, Object attribute) {
+    Secondary ix = secondary(index);
+    List<Entry<K, Long>> addrs = new ArrayList<>();
+    for (K k : lookupKeys(index, attribute)) {
+      Long addr = map.get(k);
+      if (addr != null) {
+        addrs.add(new SimpleImmutableEntry<>(k, addr));
+      }
+    }
+    TreeMap<K, V> ret = new TreeMap<>(comp);
+    readAhead(addrs.iterator(), this::valueOrNull).forEachRemaining(e -> {
+      if (attribute.equals(ix.attribute.apply(e.getValue()))) {
+        ret.put(e.getKey(), e.getValue());
+      }
+    });
+    return ret;
+  }
+
+  private Secondary secondary(String index) {
+    Secondary ret = secondaries.get(index);
+    if (ret == null) {
+      throw new IllegalArgumentException("No such index: " + index);
+    }
+    return ret;
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+
+  /**
+   * Entry iterator. Necessary slushy with respect to concurrency; a ReadView
+   * iterates a consistent point in time instead.
+   * @return iterator of entries.
+   */
+  public Iterable<Entry<K, V>> entries() {
+    return () -> readAhead(map.iterator(), this::valueOrNull);
+  }
+
+  /**
+   * Values for a run of index entries, fetched a batch at a time in address order,
+   * so that large scans read the log mostly sequentially; handed out in index order.
+   * Entries removed since the index was read (null values) are skipped.
+   */
+  private Iterator<Entry<K, V>> readAhead(Iterator<Entry<K, Long>> idx, Function<Entry<K, Long>, V> reader) {
+    return new Iterator<Entry<K, V>>() {
+      private final List<Entry<K, V>> batch = new ArrayList<>(READ_AHEAD);
+      private int pos = 0;
+      private K last = null;
+
+      @SuppressWarnings("unchecked")
+      private boolean fill() {
+        batch.clear();
+        pos = 0;
+        while (batch.isEmpty() && idx.hasNext()) {
+          List<Entry<K, Long>> got = new ArrayList<>(READ_AHEAD);
+          while (got.size() < READ_AHEAD && idx.hasNext()) {
+            got.add(idx.next());
+          }
+          Integer[] ord = new Integer[got.size()];
+          for (int i = 0; i < ord.length; i++) {
+            ord[i] = i;
+          }
+          Arrays.sort(ord, Comparator.comparingLong(i -> got.get(i).getValue()));
+          V[] vals = (V[]) new Object[got.size()];
+          for (int i : ord) {
+            vals[i] = reader.apply(got.get(i));
+          }
+          for (int i = 0; i < vals.length; i++) {
+            if (vals[i] != null) {
+              batch.add(new SimpleImmutableEntry<>(got.get(i).getKey(), vals[i]));
+            }
+          }
+        }
+        return !batch.isEmpty();
+      }
+
+      @Override
+      public boolean hasNext() {
+        return pos < batch.size() || fill();
+      }
+
+      @Override
+      public Entry<K, V> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        Entry<K, V> ret = batch.get(pos++);
+        last = ret.getKey();
+        return ret;
+      }
+
+      @Override
+      public void remove() {
+        if (last == null) {
+          throw new IllegalStateException();
+        }
+        ChiseledMap.this.remove(last);
+        last = null;
+      }
+    };
+  }
+
+  private V valueOrNull(Entry<K, Long> ent) {
+    // value at an index entry's address, or the key's current value if compaction moved it
+    if (expired(ent.getKey())) {
+      return null;
+    }
+    try {
+      return fetch(ent.getValue(), verifyOnRead, null).getValue();
+    } catch (IOException e) {
+      try {
+        return ioGet(ent.getKey());
+      } catch (IOException e1) {
+        throw new RuntimeIOException(e1);
+      }
+    }
+  }
+
+  private Iterator<Entry<K, Long>> unexpired(Iterator<Entry<K, Long>> idx) {
+    // index entries less any expired but not yet reaped; as is while nothing can expire
+    if (ttls.isEmpty()) {
+      return idx;
+    }
+    long now = clock.getAsLong();
+    return new Iterator<Entry<K, Long>>() {
+      private Entry<K, Long> next = null;
+
+      @Override
+      public boolean hasNext() {
+        while (next == null && idx.hasNext()) {
+          Entry<K, Long> e = idx.next();
+          if (!isExpired(expiresAt(e.getKey()), now)) {
+            next = e;
+          }
+        }
+        return next != null;
+      }
+
+      @Override
+      public Entry<K, Long> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        Entry<K, Long> ret = next;
+        next = null;
+        return ret;
+      }
+    };
+  }
+
+  private Entry<K, V> firstLive(Iterator<Entry<K, Long>> idx) {
+    // first index entry still present by the time we read it
+    while (idx.hasNext()) {
+      Entry<K, Long> ent = idx.next();
+      V v = valueOrNull(ent);
+      if (v != null) {
+        return new SimpleImmutableEntry<>(ent.getKey(), v);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * A key range of the map, in either direction; the map hands its navigation
+   * to an unbounded ascending one. Bounds are kept in ascending terms, null for
+   * unbounded, whichever way the view runs. Reads and writes go through the
+   * map, after a range check.
+   */
+  private final class View extends AbstractMap<K, V> implements ConcurrentNavigableMap<K, V> {
+    private final K lo;
+    private final boolean loInc;
+    private final K hi;
+    private final boolean hiInc;
+    private final boolean descending;
+
+    View(K lo, boolean loInc, K hi, boolean hiInc, boolean descending) {
+      this.lo = lo;
+      this.loInc = loInc;
+      this.hi = hi;
+      this.hiInc = hiInc;
+      this.descending = descending;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int cmp(Object a, Object b) {
+      return comp.compare((K) a, (K) b);
+    }
+
+    private boolean tooLow(Object key) {
+      if (lo == null) {
+        return false;
+      }
+      int c = cmp(key, lo);
+      return c < 0 || (c == 0 && !loInc);
+    }
+
+    private boolean tooHigh(Object key) {
+      if (hi == null) {
+        return false;
+      }
+      int c = cmp(key, hi);
+      return c > 0 || (c == 0 && !hiInc);
+    }
+
+    private boolean inRange(Object key) {
+      return !tooLow(key) && !tooHigh(key);
+    }
+
+    private K check(K key) {
+      if (!inRange(key)) {
+        throw new IllegalArgumentException("key out of range");
+      }
+      return key;
+    }
+
+    private Iterator<Entry<K, Long>> index(boolean reverse) {
+      return unexpired(map.range(lo, loInc, hi, hiInc, descending != reverse));
+    }
+
+    private Iterator<Entry<K, Long>> nav(K key, boolean inclusive, boolean after) {
+      // index from key onwards, in the view's direction if after, else against it
+      if (after != descending) {
+        return unexpired(tooLow(key) ? map.range(lo, loInc, hi, hiInc, false) : map.range(key, inclusive, hi, hiInc, false));
+      }
+      return unexpired(tooHigh(key) ? map.range(lo, loInc, hi, hiInc, true) : map.range(lo, loInc, key, inclusive, true));
+    }
+
+    private K keyOf(Iterator<Entry<K, Long>> idx) {
+      return idx.hasNext() ? idx.next().getKey() : null;
+    }
+
+    private View sub(K from, boolean fromInc, K to, boolean toInc) {
+      // bounds in the view's order; null leaves that side as it is
+      K l = descending ? to : from;
+      boolean li = descending ? toInc : fromInc;
+      K h = descending ? from : to;
+      boolean hInc = descending ? fromInc : toInc;
+      if (l == null) {
+        l = lo;
+        li = loInc;
+      } else if (lo != null) {
+        int c = cmp(l, lo);
+        if (c < 0 || (c == 0 && !loInc && li)) {
+          throw new IllegalArgumentException("key out of range");
+        }
+      }
+      if (h == null) {
+        h = hi;
+        hInc = hiInc;
+      } else if (hi != null) {
+        int c = cmp(h, hi);
+        if (c > 0 || (c == 0 && !hiInc && hInc)) {
+          throw new IllegalArgumentException("key out of range");
+        }
+      }
+      if (l != null && h != null && cmp(l, h) > 0) {
+        throw new IllegalArgumentException("inconsistent range");
+      }
+      return new View(l, li, h, hInc, descending);
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+      return new AbstractSet<Entry<K, V>>() {
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+          return readAhead(index(false), ChiseledMap.this::valueOrNull);
+        }
+
+        @Override
+        public int size() {
+          return View.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+          return View.this.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+          if (!(o instanceof Entry)) {
+            return false;
+          }
+          Entry<?, ?> e = (Entry<?, ?>) o;
+          V v = View.this.get(e.getKey());
+          return v != null && v.equals(e.getValue());
+        }
+
+        @Override
+        public boolean remove(Object o) {
+          if (!(o instanceof Entry)) {
+            return false;
+          }
+          Entry<?, ?> e = (Entry<?, ?>) o;
+          return View.this.remove(e.getKey(), e.getValue());
+        }
+
+        @Override
+        public void clear() {
+          View.this.clear();
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      if (lo == null && hi == null) {
+        return map.size();
+      }
+      int n = 0;
+      for (Iterator<Entry<K, Long>> it = index(false); it.hasNext(); it.next()) {
+        n++;
+      }
+      return n;
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return !index(false).hasNext();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return inRange(key) && ChiseledMap.this.containsKey(key);
+    }
+
+    @Override
+    public V get(Object key) {
+      return inRange(key) ? ChiseledMap.this.get(key) : null;
+    }
+
+    @Override
+    public V put(K key, V value) {
+      return ChiseledMap.this.put(check(key), value);
+    }
+
+    @Override
+    public V remove(Object key) {
+      return inRange(key) ? ChiseledMap.this.remove(key) : null;
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+      return ChiseledMap.this.putIfAbsent(check(key), value);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+      return inRange(key) && ChiseledMap.this.remove(key, value);
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+      return inRange(key) && ChiseledMap.this.replace(key, oldValue, newValue);
+    }
+
+    @Override
+    public V replace(K key, V value) {
+      return inRange(key) ? ChiseledMap.this.replace(key, value) : null;
+    }
+
+    @Override
+    public void clear() {
+      for (Iterator<Entry<K, Long>> it = index(false); it.hasNext(); ) {
+        ChiseledMap.this.remove(it.next().getKey());
+      }
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+      return descending ? Collections.reverseOrder(comp) : comp;
+    }
+
+    @Override
+    public View subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+      return sub(Objects.requireNonNull(fromKey), fromInclusive, Objects.requireNonNull(toKey), toInclusive);
+    }
+
+    @Override
+    public View subMap(K fromKey, K toKey) {
+      return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public View headMap(K toKey, boolean inclusive) {
+      return sub(null, false, Objects.requireNonNull(toKey), inclusive);
+    }
+
+    @Override
+    public View headMap(K toKey) {
+      return headMap(toKey, false);
+    }
+
+    @Override
+    public View tailMap(K fromKey, boolean inclusive) {
+      return sub(Objects.requireNonNull(fromKey), inclusive, null, false);
+    }
+
+    @Override
+    public View tailMap(K fromKey) {
+      return tailMap(fromKey, true);
+    }
+
+    @Override
+    public View descendingMap() {
+      return new View(lo, loInc, hi, hiInc, !descending);
+    }
+
+    @Override
+    public Entry<K, V> lowerEntry(K key) {
+      return firstLive(nav(key, false, false));
+    }
+
+    @Override
+    public K lowerKey(K key) {
+      return keyOf(nav(key, false, false));
+    }
+
+    @Override
+    public Entry<K, V> floorEntry(K key) {
+      return firstLive(nav(key, true, false));
+    }
+
+    @Override
+    public K floorKey(K key) {
+      return keyOf(nav(key, true, false));
+    }
+
+    @Override
+    public Entry<K, V> ceilingEntry(K key) {
+      return firstLive(nav(key, true, true));
+    }
+
+    @Override
+    public K ceilingKey(K key) {
+      return keyOf(nav(key, true, true));
+    }
+
+    @Override
+    public Entry<K, V> higherEntry(K key) {
+      return firstLive(nav(key, false, true));
+    }
+
+    @Override
+    public K higherKey(K key) {
+      return keyOf(nav(key, false, true));
+    }
+
+    @Override
+    public Entry<K, V> firstEntry() {
+      return firstLive(index(false));
+    }
+
+    @Override
+    public Entry<K, V> lastEntry() {
+      return firstLive(index(true));
+    }
+
+    @Override
+    public K firstKey() {
+      K k = keyOf(index(false));
+      if (k == null) {
+        throw new NoSuchElementException();
+      }
+      return k;
+    }
+
+    @Override
+    public K lastKey() {
+      K k = keyOf(index(true));
+      if (k == null) {
+        throw new NoSuchElementException();
+      }
+      return k;
+    }
+
+    @Override
+    public Entry<K, V> pollFirstEntry() {
+      return poll(false);
+    }
+
+    @Override
+    public Entry<K, V> pollLastEntry() {
+      return poll(true);
+    }
+
+    private Entry<K, V> poll(boolean last) {
+      for (; ; ) {
+        Entry<K, V> e = firstLive(index(last));
+        if (e == null || ChiseledMap.this.remove(e.getKey(), e.getValue())) {
+          return e;
+        }
+      }
+    }
+
+    @Override
+    public NavigableSet<K> keySet() {
+      return new KeySet(this);
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet() {
+      return new KeySet(this);
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+      return new KeySet(descendingMap());
+    }
+  }
+
+  /**
+   * Keys of a view; never reads the log.
+   */
+  private final class KeySet extends AbstractSet<K> implements NavigableSet<K> {
+    private final View view;
+
+    KeySet(View view) {
+      this.view = view;
+    }
+
+    private Iterator<K> keys(boolean reverse) {
+      Iterator<Entry<K, Long>> idx = view.index(reverse);
+      return new Iterator<K>() {
+        private K last = null;
+
+        @Override
+        public boolean hasNext() {
+          return idx.hasNext();
+        }
+
+        @Override
+        public K next() {
+          last = idx.next().getKey();
+          return last;
+        }
+
+        @Override
+        public void remove() {
+          if (last == null) {
+            throw new IllegalStateException();
+          }
+          ChiseledMap.this.remove(last);
+          last = null;
+        }
+      };
+    }
+
+    @Override
+    public Iterator<K> iterator() {
+      return keys(false);
+    }
+
+    @Override
+    public Iterator<K> descendingIterator() {
+      return keys(true);
+    }
+
+    @Override
+    public int size() {
+      return view.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return view.isEmpty();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return view.containsKey(o);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      return view.remove(o) != null;
+    }
+
+    @Override
+    public void clear() {
+      view.clear();
+    }
+
+    @Override
+    public K lower(K k) {
+      return view.lowerKey(k);
+    }
+
+    @Override
+    public K floor(K k) {
+      return view.floorKey(k);
+    }
+
+    @Override
+    public K ceiling(K k) {
+      return view.ceilingKey(k);
+    }
+
+    @Override
+    public K higher(K k) {
+      return view.higherKey(k);
+    }
+
+    @Override
+    public K pollFirst() {
+      Entry<K, V> e = view.pollFirstEntry();
+      return (e == null) ? null : e.getKey();
+    }
+
+    @Override
+    public K pollLast() {
+      Entry<K, V> e = view.pollLastEntry();
+      return (e == null) ? null : e.getKey();
+    }
+
+    @Override
+    public NavigableSet<K> descendingSet() {
+      return new KeySet(view.descendingMap());
+    }
+
+    @Override
+    public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+      return new KeySet(view.subMap(fromElement, fromInclusive, toElement, toInclusive));
+    }
+
+    @Override
+    public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+      return new KeySet(view.headMap(toElement, inclusive));
+    }
+
+    @Override
+    public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+      return new KeySet(view.tailMap(fromElement, inclusive));
+    }
+
+    @Override
+    public NavigableSet<K> subSet(K fromElement, K toElement) {
+      return subSet(fromElement, true, toElement, false);
+    }
+
+    @Override
+    public NavigableSet<K> headSet(K toElement) {
+      return headSet(toElement, false);
+    }
+
+    @Override
+    public NavigableSet<K> tailSet(K fromElement) {
+      return tailSet(fromElement, true);
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+      return view.comparator();
+    }
+
+    @Override
+    public K first() {
+      return view.firstKey();
+    }
+
+    @Override
+    public K last() {
+      return view.lastKey();
+    }
+  }
+
+  // Navigation is all done by the unbounded view.
+
+  @Override
+  public Comparator<? super K> comparator() {
+    return all.comparator();
+  }
+
+  @Override
+  public ConcurrentNavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+    return all.subMap(fromKey, fromInclusive, toKey, toInclusive);
+  }
+
+  @Override
+  public ConcurrentNavigableMap<K, V> subMap(K fromKey, K toKey) {
+    return all.subMap(fromKey, toKey);
+  }
+
+  @Override
+  public ConcurrentNavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+    return all.headMap(toKey, inclusive);
+  }
+
+  @Override
+  public ConcurrentNavigableMap<K, V> headMap(K toKey) {
+    return all.headMap(toKey);
+  }
+
+  @Override
+  public ConcurrentNavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+    return all.tailMap(fromKey, inclusive);
+  }
+
+  @Override
+  public ConcurrentNavigableMap<K, V> tailMap(K fromKey) {
+    return all.tailMap(fromKey);
+  }
+
+  @Override
+  public ConcurrentNavigableMap<K, V> descendingMap() {
+    return all.descendingMap();
   }
 
-  private Entry<K, V> fetch(long addr, boolean check, long[] nextPos) throws IOException {
-    // core retrieval by address code. First, flush outstanding data
-    if (pendingWrites > 0) {
-      flushBuffer();
-    }
-    // read the length
-    ByteBuffer tmp = ByteBuffer.allocate(Integer.BYTES);
-    readFully(addr, tmp);
-    tmp.clear();
-    int len = tmp.getInt(0);
-    // read data + crc
-    byte[] r = new byte[len + Integer.BYTES];
-    ByteBuffer wrap = ByteBuffer.wrap(r);
-    readFully(addr + Integer.BYTES, wrap);
-    wrap.clear();
-    // if we are checking...
-    if (check) {
-      // last 4 bytes are the digest;
-      int d = wrap.getInt(wrap.capacity() - Integer.BYTES);
-      wrap.limit(wrap.capacity() - Integer.BYTES);
-      synchronized (this) {
-        // sync here so we can reuse digest.
-        digest.reset();
-        digest.update(wrap);
-        int chk = (int) (digest.getValue() & DIGEST_MASK);
-        if (chk != d) {
-          throw new IOException();
-        }
-      }
-      wrap.clear();
-    }
-    if (nextPos != null) {
-      // if we have a nextpos array, return the next adddress.
-      nextPos[0] = addr + len + Integer.BYTES + Integer.BYTES;
-    }
-    // decode key and value. Rock on. Note there is a spare 4 bytes at the
-    // end. Dirty coding FTW!
-    return decoder.decode(r);
+  @Override
+  public NavigableSet<K> keySet() {
+    return all.keySet();
   }
 
-  private void readFully(long addr, ByteBuffer tmp) throws IOException {
-    do {
-      int many = fc.read(tmp, addr);
-      if (many <= 0) {
-        throw new IOException();
-      }
-      addr = addr + many;
-    } while (tmp.hasRemaining());
+  @Override
+  public NavigableSet<K> navigableKeySet() {
+    return all.navigableKeySet();
   }
 
-  private synchronized void flushBuffer() throws IOException {
-    // flush defautl buffer, reset pending count
-    flushBuffer(writeBuffer);
-    pendingWrites = 0;
+  @Override
+  public NavigableSet<K> descendingKeySet() {
+    return all.descendingKeySet();
   }
 
-  private void flushBuffer(ByteBuffer b) throws IOException {
-    // flush arbitrary buffer to disk, update next write pos
-    b.flip();
-    int toWrite = b.remaining();
-    writeFully(b, nextWritePos);
-    b.clear();
-    nextWritePos = nextWritePos + toWrite;
+  @Override
+  public Entry<K, V> lowerEntry(K key) {
+    return all.lowerEntry(key);
   }
 
-  private synchronized long append(K key, V v) throws IOException {
-    // core append path for all mutations
-
-    // encode to byte buffer, record length
-    ByteBuffer payload = encoder.encode(key, v);
-    lenBuffer.clear();
-    lenBuffer.putInt(0, payload.remaining());
+  @Override
+  public K lowerKey(K key) {
+    return all.lowerKey(key);
+  }
 
-    // create crc checksum
-    digest.reset();
-    digest.update(payload.slice());
-    int d = (int) (digest.getValue() & DIGEST_MASK);
-    digestBuffer.clear();
-    digestBuffer.putInt(0, d);
+  @Override
+  public Entry<K, V> floorEntry(K key) {
+    return all.floorEntry(key);
+  }
 
-    // return the current write pos
-    long ret = currentWritePos;
-    int fp = Integer.BYTES + Integer.BYTES + payload.remaining();
-    write(lenBuffer, payload, digestBuffer, fp);
-    this.currentWritePos = currentWritePos + fp;
-    entriesOnDisk++;
-    return ret;
+  @Override
+  public K floorKey(K key) {
+    return all.floorKey(key);
   }
 
-  private void write(ByteBuffer len, ByteBuffer arr, ByteBuffer d, int fp) throws IOException {
-    // write the data into the buffer, flushing if necessary
-    if (writeBuffer.capacity() < fp) {
-      // can't use the write buffer, flush pending and write it explicitly.
-      flushBuffer();
-      ByteBuffer tmp = ByteBuffer.allocateDirect(fp);
-      tmp.put(len);
-      tmp.put(arr);
-      tmp.put(d);
-      tmp.flip();
-      flushBuffer(tmp);
-    } else {
-      if (writeBuffer.remaining() < fp) {
-        // no room at the inn. flush and go.
-        flushBuffer();
-      }
-      // actually append the 3 parts to the buffer, inc the counter.
-      writeBuffer.put(len);
-      writeBuffer.put(arr);
-      writeBuffer.put(d);
-      pendingWrites++;
-    }
+  @Override
+  public Entry<K, V> ceilingEntry(K key) {
+    return all.ceilingEntry(key);
   }
 
-  private void writeFully(ByteBuffer b, long pos) throws IOException {
-    while (b.hasRemaining()) {
-      int wrote = fc.write(b, pos);
-      pos = pos + wrote;
-    }
+  @Override
+  public K ceilingKey(K key) {
+    return all.ceilingKey(key);
   }
 
-  /**
-   * Number of entries actually on the disk, even if invalid.
-   * @return number of entries on disk, live and dead.
-   */
-  public long entriesOnDisk() {
-    return entriesOnDisk;
+  @Override
+  public Entry<K, V> higherEntry(K key) {
+    return all.higherEntry(key);
   }
 
-  /**
-   * File being used.
-   * @return file
-   */
-  public File getFile() {
-    return file;
+  @Override
+  public K higherKey(K key) {
+    return all.higherKey(key);
   }
 
-  /**
-   * File footprint on disk.
-   * @return file size
-   * @throws IOException on exception
-   */
-  public long bytesOnDisk() throws IOException {
-    flushBuffer();
-    return fc.size();
+  @Override
+  public Entry<K, V> firstEntry() {
+    return all.firstEntry();
   }
 
-  /**
-   * Close this TinyKVMap.
-   * @throws IOException on exception
-   */
-  public synchronized void close() throws IOException {
-    flushBuffer();
-    fc.close();
-    map.clear();
+  @Override
+  public Entry<K, V> lastEntry() {
+    return all.lastEntry();
   }
 
   @Override
-  public int size() {
-    return map.size();
+  public Entry<K, V> pollFirstEntry() {
+    return all.pollFirstEntry();
   }
 
-  /**
-   * Entry iterator. Necessary slushy with respect to concurrency.
-   * @return iterator of entries.
-   */
-  public Iterable<Entry<K, V>> entries() {
-    return () -> new Iterator<Entry<K, V>>() {
-      final Iterator<Entry<K, Long>> base = map.entrySet().iterator();
+  @Override
+  public Entry<K, V> pollLastEntry() {
+    return all.pollLastEntry();
+  }
 
-      @Override
-      public boolean hasNext() {
-        return base.hasNext();
-      }
+  @Override
+  public K firstKey() {
+    return all.firstKey();
+  }
 
-      @Override
-      public Entry<K, V> next() {
-        Entry<K, Long> n = base.next();
-        try {
-          return fetch(n.getValue(), false, null);
-        } catch (IOException e) {
-          throw new RuntimeIOException(e);
-        }
-      }
-    };
+  @Override
+  public K lastKey() {
+    return all.lastKey();
   }
 
+
   @Override
   public Set<Entry<K, V>> entrySet() {
     return new AbstractSet<Entry<K, V>>() {
@@ -446,6 +5175,149 @@ public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentMa
     };
   }
 
+  private void commit() throws IOException {
+    // block until everything appended so far is forced, if the policy says so.
+    // Nested calls (compute() and friends) leave it to the outermost.
+    if (!durability.waits() || Thread.holdsLock(this)) {
+      return;
+    }
+    long ticket = appended;
+    boolean interrupted = false;
+    synchronized (commitLock) {
+      committers++;
+      if (committing && committers >= durability.maxBatch) {
+        // batch is full, wake a leader waiting for company
+        commitLock.notifyAll();
+      }
+      try {
+        while (durable < ticket && committing) {
+          try {
+            commitLock.wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        if (durable >= ticket) {
+          return;
+        }
+        // leader; wait a bit for company
+        committing = true;
+        long deadline = System.nanoTime() + durability.nanos;
+        for (long left = durability.nanos; committers < durability.maxBatch && left > 0; ) {
+          try {
+            TimeUnit.NANOSECONDS.timedWait(commitLock, left);
+          } catch (InterruptedException e) {
+            interrupted = true;
+            break;
+          }
+          left = deadline - System.nanoTime();
+        }
+      } finally {
+        committers--;
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+    try {
+      forceAppended();
+    } finally {
+      synchronized (commitLock) {
+        committing = false;
+        commitLock.notifyAll();
+      }
+    }
+  }
+
+  private void commitUnchecked() {
+    try {
+      commit();
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
+  }
+
+  private void forceAppended() throws IOException {
+    // write the buffer and force, then note how many appends that covered.
+    FileChannel fc;
+    long upTo;
+    synchronized (this) {
+      flushBuffer();
+      fc = active.fc;
+      upTo = appended;
+    }
+    try {
+      force(fc);
+    } catch (ClosedChannelException e) {
+      // compacted away meanwhile; the copy was forced before the swap.
+      synchronized (this) {
+        force(active.fc);
+      }
+    }
+    syncs++;
+    synchronized (commitLock) {
+      durable = Math.max(durable, upTo);
+    }
+  }
+
+  /**
+   * Gets served from the value cache, if there is one.
+   * @return hit count
+   */
+  public long cacheHits() {
+    if (cache == null) {
+      return 0;
+    }
+    return cache.hits.sum();
+  }
+
+  /**
+   * Gets that had to read the file, while there is a value cache.
+   * @return miss count
+   */
+  public long cacheMisses() {
+    if (cache == null) {
+      return 0;
+    }
+    return cache.misses.sum();
+  }
+
+  /**
+   * Bytes of record payload offered to compression per byte stored, since open;
+   * 1.0 with compression off.
+   * @return compression ratio
+   */
+  public double compressionRatio() {
+    long stored = storedBytes.sum();
+    return (stored == 0) ? 1.0d : (double) rawBytes.sum() / stored;
+  }
+
+  /**
+   * Time spent deflating records, in all threads, since open.
+   * @param units time units
+   * @return time
+   */
+  public long compressionTime(TimeUnit units) {
+    return units.convert(deflateNanos.sum(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Time spent inflating records, in all threads, since open.
+   * @param units time units
+   * @return time
+   */
+  public long decompressionTime(TimeUnit units) {
+    return units.convert(inflateNanos.sum(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Number of forces issued on behalf of the durability policy.
+   * @return force count
+   */
+  public long syncs() {
+    return syncs;
+  }
+
   /**
    * Flush any buffered changes to disk, fsync.
    * @throws IOException If you get an IOException, literally no guarantees
@@ -453,7 +5325,24 @@ public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentMa
    */
   public void flush() throws IOException {
     flushBuffer();
+    force(active.fc);
+  }
+
+  private void force(FileChannel fc) throws IOException {
+    long t0 = System.nanoTime();
     fc.force(false);
+    forceNanos.since(t0);
+  }
+
+  /**
+   * Take a snapshot of the map's metrics. Cheap; the counters behind it are
+   * always on, and taking one doesn't flush or touch the file.
+   * @return metrics as of now
+   */
+  public Metrics metrics() {
+    return new Metrics(getNanos.snapshot(), setNanos.snapshot(), removeNanos.snapshot(), encodeNanos.snapshot(),
+      flushSizes.snapshot(), forceNanos.snapshot(), bytesAppended.sum(), bytesRead.sum(), deadRatio(), map.size(),
+      entriesOnDisk, logBytes(), expired.sum());
   }
 
   /**
@@ -463,11 +5352,13 @@ public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentMa
    * @throws IOException on exception
    */
   public V ioGet(Object key) throws IOException {
-    Long addr = map.get(key);
-    if (addr != null) {
-      return fetch(addr, false, null).getValue();
+    long t0 = System.nanoTime();
+    try {
+      Entry<Long, V> cur = current(key);
+      return (cur == null) ? null : cur.getValue();
+    } finally {
+      getNanos.since(t0);
     }
-    return null;
   }
 
   /**
@@ -476,13 +5367,27 @@ public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentMa
    * @return prior value
    * @throws IOException on exception
    */
-  public synchronized V ioUnset(K key) throws IOException {
-    V p = ioGet(key);
-    if (p != null) {
-      append(key, null);
-      map.remove(key);
+  public V ioUnset(K key) throws IOException {
+    long t0 = System.nanoTime();
+    try {
+      if (map.get(key) == null) {
+        return null;
+      }
+      ByteBuffer rec = frame(key, null);
+      ByteBuffer raw;
+      synchronized (this) {
+        Long addr = map.get(key);
+        if (addr == null || expire(key, addr)) {
+          return null;
+        }
+        raw = readRecord(addr, verifyOnRead, null);
+        publish(key, rec, null, null);
+      }
+      commit();
+      return decode(raw).getValue();
+    } finally {
+      removeNanos.since(t0);
     }
-    return p;
   }
 
   /**
@@ -492,42 +5397,101 @@ public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentMa
    * @return true if it replaced a value
    * @throws IOException on exception
    */
-  public synchronized boolean ioSet(K key, V v) throws IOException {
-    Objects.requireNonNull(v);
-    long newAddr = append(key, v);
-    return map.put(key, newAddr) != null;
+  public boolean ioSet(K key, V v) throws IOException {
+    long t0 = System.nanoTime();
+    try {
+      Objects.requireNonNull(v);
+      ByteBuffer rec = frame(key, v);
+      Long prior = publish(key, rec, v, attributes(v));
+      commit();
+      return prior != null;
+    } finally {
+      setNanos.since(t0);
+    }
   }
 
-  public synchronized V ioGetSet(K key, V v) throws IOException {
-    Objects.requireNonNull(v);
-    Long addr = map.get(key);
-    V ret = null;
-    if (addr != null) {
-      ret = fetch(addr, false, null).getValue();
+  /**
+   * Associate a key to a value which expires after ttl. Once expired, the
+   * entry reads as absent; the reaper, or the next touch of the key, drops it
+   * from the index and counts its record as dead.
+   * @param key key value
+   * @param v value -- cannot be null.
+   * @param ttl time to live, from now
+   * @param units units for ttl
+   * @return true if it replaced a value
+   * @throws IOException on exception
+   */
+  public boolean ioSet(K key, V v, long ttl, TimeUnit units) throws IOException {
+    long t0 = System.nanoTime();
+    try {
+      Objects.requireNonNull(v);
+      return setUntil(key, v, expiry(ttl, units));
+    } finally {
+      setNanos.since(t0);
     }
-    long newAddr = append(key, v);
-    map.put(key, newAddr);
-    return ret;
+  }
+
+  private boolean setUntil(K key, V v, long expires) throws IOException {
+    ByteBuffer rec = frame(key, v, expires);
+    Long prior = publish(key, rec, v, attributes(v));
+    commit();
+    return prior != null;
+  }
+
+  public V ioGetSet(K key, V v) throws IOException {
+    long t0 = System.nanoTime();
+    try {
+      Objects.requireNonNull(v);
+      ByteBuffer rec = frame(key, v);
+      Object[] attrs = attributes(v);
+      ByteBuffer raw = null;
+      synchronized (this) {
+        // copy the old bytes out under the lock, decode them after
+        Long addr = map.get(key);
+        if (addr != null && !expire(key, addr)) {
+          raw = readRecord(addr, verifyOnRead, null);
+        }
+        publish(key, rec, v, attrs);
+      }
+      commit();
+      return (raw == null) ? null : decode(raw).getValue();
+    } finally {
+      setNanos.since(t0);
+    }
+  }
+
+  /**
+   * Start a batch of changes, applied together on WriteBatch.commit().
+   * @return new empty batch
+   */
+  public WriteBatch batch() {
+    return new WriteBatch();
   }
 
   /**
    * Copy only live entries to another file. Blocks writes to this map
-   * while snapshotting.
+   * while snapshotting; backup() doesn't.
    * @param f dest file
    * @return new TinyKVMap
    * @throws IOException on exception
    */
   public synchronized ChiseledMap<K, V> snapshot(File f) throws IOException {
-    ChiseledMap<K, V> ret = new ChiseledMap<>(f, OpenOption.MUST_BE_NEW, comp, encoder, decoder);
+    Config<K, V> config = new Config<K, V>().comparator(comp).encoder(encoder).decoder(decoder);
+    if (keys != null) {
+      config.codecs(keys, values);
+    }
+    config.compression(compression).compressionDictionary(dictionary).crc32c(crc32c).verifyOnRead(verifyOnRead);
+    ChiseledMap<K, V> ret = config.open(f, OpenOption.MUST_BE_NEW);
     for (Entry<K, V> ent : entries()) {
-      ret.ioSet(ent.getKey(), ent.getValue());
+      // expiries carry over as they are
+      ret.setUntil(ent.getKey(), ent.getValue(), expiresAt(ent.getKey()));
     }
     return ret;
   }
 
   @Override
   public boolean containsKey(Object key) {
-    return map.containsKey(key);
+    return map.get(key) != null && !expired(key);
   }
 
   @Override
@@ -553,6 +5517,22 @@ public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentMa
     }
   }
 
+  /**
+   * Unchecked verson of ioSet() with a time to live
+   * @param key key value
+   * @param value value to associate with key
+   * @param ttl time to live, from now
+   * @param units units for ttl
+   * @return true if it replaced a value
+   */
+  public boolean set(K key, V value, long ttl, TimeUnit units) {
+    try {
+      return ioSet(key, value, ttl, units);
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
+  }
+
   @Override
   public V put(K key, V value) {
     try {
@@ -573,48 +5553,113 @@ public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentMa
   }
 
   @Override
-  public synchronized void clear() {
-    map.keySet().forEach(this::remove);
-  }
-
-  @Override
-  public synchronized V putIfAbsent(K key, V value) {
-    return super.putIfAbsent(key, value);
-  }
-
-  @Override
-  public synchronized boolean remove(Object key, Object value) {
-    return super.remove(key, value);
-  }
-
-  @Override
-  public synchronized boolean replace(K key, V oldValue, V newValue) {
-    return super.replace(key, oldValue, newValue);
+  public void clear() {
+    synchronized (this) {
+      List<K> keys = new ArrayList<>(map.size());
+      map.forEach(e -> keys.add(e.getKey()));
+      keys.forEach(this::remove);
+    }
+    commitUnchecked();
   }
 
-  @Override
-  public synchronized V replace(K key, V value) {
-    return super.replace(key, value);
-  }
+  // The conditional writes read and encode without the lock, then publish only
+  // if the key's address hasn't moved meanwhile, retrying if it has. compute()
+  // and friends come from ConcurrentMap, built on these.
 
   @Override
-  public synchronized V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
-    return super.computeIfAbsent(key, mappingFunction);
+  public V putIfAbsent(K key, V value) {
+    Objects.requireNonNull(value);
+    try {
+      ByteBuffer rec = null;
+      Object[] attrs = null;
+      for (; ; ) {
+        Entry<Long, V> cur = current(key);
+        if (cur != null) {
+          return cur.getValue();
+        }
+        if (rec == null) {
+          rec = frame(key, value);
+          attrs = attributes(value);
+        }
+        if (publishIf(key, null, rec, value, attrs)) {
+          commit();
+          return null;
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
   }
 
   @Override
-  public synchronized V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
-    return super.computeIfPresent(key, remappingFunction);
+  @SuppressWarnings("unchecked")
+  public boolean remove(Object key, Object value) {
+    try {
+      ByteBuffer rec = null;
+      for (; ; ) {
+        Entry<Long, V> cur = current(key);
+        if (cur == null || !cur.getValue().equals(value)) {
+          return false;
+        }
+        rec = (rec == null) ? frame((K) key, null) : rec;
+        if (publishIf((K) key, cur.getKey(), rec, null, null)) {
+          commit();
+          return true;
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
   }
 
   @Override
-  public synchronized V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
-    return super.compute(key, remappingFunction);
+  public boolean replace(K key, V oldValue, V newValue) {
+    Objects.requireNonNull(newValue);
+    try {
+      ByteBuffer rec = null;
+      Object[] attrs = null;
+      for (; ; ) {
+        Entry<Long, V> cur = current(key);
+        if (cur == null || !cur.getValue().equals(oldValue)) {
+          return false;
+        }
+        if (rec == null) {
+          rec = frame(key, newValue);
+          attrs = attributes(newValue);
+        }
+        if (publishIf(key, cur.getKey(), rec, newValue, attrs)) {
+          commit();
+          return true;
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
   }
 
   @Override
-  public synchronized V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
-    return super.merge(key, value, remappingFunction);
+  public V replace(K key, V value) {
+    Objects.requireNonNull(value);
+    try {
+      ByteBuffer rec = null;
+      Object[] attrs = null;
+      for (; ; ) {
+        Entry<Long, V> cur = current(key);
+        if (cur == null) {
+          return null;
+        }
+        if (rec == null) {
+          rec = frame(key, value);
+          attrs = attributes(value);
+        }
+        if (publishIf(key, cur.getKey(), rec, value, attrs)) {
+          commit();
+          return cur.getValue();
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
   }
 
   @Override
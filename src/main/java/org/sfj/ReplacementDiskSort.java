@@ -15,9 +15,12 @@
  */
 package org.sfj;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
@@ -26,9 +29,28 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Objects;
 import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
 import static java.util.Collections.singletonList;
 
 /**
@@ -41,6 +63,14 @@ import static java.util.Collections.singletonList;
  * that make arbitrary iterators and appenders, which are then used read and write
  * your subclass of Element. SO if you have binary ints, fine. Strings, fine. Just
  * provide the appender/iterators to make it happen.
+ * <p>For plain binary records, BinaryFormat has length prefixed and fixed width
+ * files built in, done with direct buffers and background read ahead / write behind.
+ * <p>Instead of element counts, a sort can be given a memory budget in bytes and a
+ * Sizer to estimate elements with; see setMemoryBudget().
+ * <p>Run generation can be spread over several threads with setRunThreads(); the
+ * source is still read by one iterator, and dealt out to the workers in blocks.
+ * The merge groups of a pass can run concurrently with setMergeThreads(), and the
+ * final merge can be split by key range with setFinalMergeSegments().
  * @param <E> element subclass
  *
  * @author cschanck
@@ -53,13 +83,24 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
     private final List<File> srcFiles;
     private final List<File> destFiles;
     private final List<Long> runCounts;
+    private final long peakBytes;
 
     public PassInfo(int pass, List<File> srcFiles, List<File> destFiles, List<Long> destCounts, long runTimeMS) {
+      this(pass, srcFiles, destFiles, destCounts, runTimeMS, -1);
+    }
+
+    public PassInfo(int pass,
+                    List<File> srcFiles,
+                    List<File> destFiles,
+                    List<Long> destCounts,
+                    long runTimeMS,
+                    long peakBytes) {
       this.pass = pass;
       this.srcFiles = srcFiles;
       this.destFiles = destFiles;
       this.runCounts = destCounts;
       this.runTimeMS = runTimeMS;
+      this.peakBytes = peakBytes;
     }
 
     public int getPass() {
@@ -82,6 +123,16 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
       return runCounts;
     }
 
+    /**
+     * Estimated peak memory of this pass: the elements it held, as the sizer
+     * has them, plus the I/O buffers of the files it had open. Passes that run
+     * at the same time (run workers, concurrent merges) each report their own.
+     * @return bytes, or -1 when no sizer is set
+     */
+    public long getPeakBytes() {
+      return peakBytes;
+    }
+
     @Override
     public String toString() {
       return "PassInfo{" +
@@ -95,10 +146,27 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
              destFiles +
              ", runCounts=" +
              runCounts +
+             ", peakBytes=" +
+             peakBytes +
              '}';
     }
   }
 
+  /**
+   * How a merge pass picks the next element from its input files.
+   */
+  public enum MergeStrategy {
+    /**
+     * Heap of file heads; a poll and an add, about 2 log k comparisons, per element.
+     */
+    PRIORITY_QUEUE,
+    /**
+     * Tournament tree of losers; log k comparisons per element, and one for a
+     * two-way merge. The default.
+     */
+    LOSER_TREE
+  }
+
   /**
    * This is the class you need to subclass; you will provide
    * file iterators (readers) and file appenders for your subclass.
@@ -134,11 +202,20 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
   /**
    * An external iterator. Continues to provide data until
    * the next() method return null. Providers should take care to close
-   * any underlying resource when returning null.
+   * any underlying resource when returning null, or when close() is called.
    * @param <EE> Element subclass
    */
   public interface ExternalIterator<EE extends Element> {
     EE next() throws IOException;
+
+    /**
+     * Release any underlying resource early; the sort calls this when it stops
+     * reading a file before the end, as range-split final merges do. It is also
+     * called after next() has returned null, so it must be safe to repeat.
+     * @throws IOException on exception
+     */
+    default void close() throws IOException {
+    }
   }
 
   /**
@@ -170,14 +247,452 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
     ExternalAppender<EE> make(File f) throws IOException;
   }
 
+  /**
+   * Estimates the memory an element takes on the heap, object headers and all.
+   * Called a couple of times per element as it moves through the sort, so keep
+   * it cheap, and give the same answer for the same element.
+   * @param <EE> Element subclass
+   */
+  @FunctionalInterface
+  public interface Sizer<EE extends Element> {
+    long sizeOf(EE elem);
+  }
+
+  /**
+   * Turns an element into bytes and back, for the built-in BinaryFormat.
+   * @param <EE> Element subclass
+   */
+  public interface RecordCodec<EE extends Element> {
+    /**
+     * Bytes write() will put for this element.
+     * @param elem element
+     * @return size in bytes
+     */
+    int size(EE elem);
+
+    /**
+     * Write exactly size(elem) bytes at the buffer's position.
+     * @param elem element
+     * @param dest buffer, with room
+     */
+    void write(EE elem, ByteBuffer dest);
+
+    /**
+     * Read an element from exactly the bytes of one record. The buffer is
+     * reused afterwards, so copy out whatever the element keeps.
+     * @param src record bytes
+     * @return element
+     */
+    EE read(ByteBuffer src);
+  }
+
+  /**
+   * Built-in binary record files, read and written through a FileChannel with a
+   * pair of large direct buffers per file: while the element loop works on one,
+   * the other is read ahead or written behind on the format's pool of I/O threads.
+   * Records are either length prefixed ([int length][bytes]) or fixed width.
+   * Each open file holds two buffers, so a merge of k files needs 2(k + 1) of
+   * them; size them with that in mind. Direct memory is only given back when the
+   * GC gets to it, so a closed file's buffers go back to the format for the next
+   * file to reuse; the format keeps as many as were ever in use at once, until
+   * release(). The I/O threads are bounded by ioThreads(), and idle ones exit.
+   * Files concatenate cleanly, so this works with setFinalMergeSegments().
+   * @param <EE> Element subclass
+   */
+  public static final class BinaryFormat<EE extends Element> {
+    private static final int DEFAULT_BUFFER = 256 * 1024;
+    private final RecordCodec<EE> codec;
+    private final int width;
+    private int bufferSize = DEFAULT_BUFFER;
+    private boolean async = true;
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    private ThreadPoolExecutor io = null;
+    // buffers of closed files, by capacity
+    private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>> buffers = new ConcurrentHashMap<>();
+
+    private BinaryFormat(RecordCodec<EE> codec, int width) {
+      this.codec = Objects.requireNonNull(codec);
+      this.width = width;
+    }
+
+    /**
+     * Records of any size, each prefixed with its length as an int.
+     * @param codec element codec
+     * @param <EE> Element subclass
+     * @return format
+     */
+    public static <EE extends Element> BinaryFormat<EE> lengthPrefixed(RecordCodec<EE> codec) {
+      return new BinaryFormat<>(codec, -1);
+    }
+
+    /**
+     * Records of exactly width bytes, with no framing.
+     * @param width record size in bytes
+     * @param codec element codec; size() must always be width
+     * @param <EE> Element subclass
+     * @return format
+     */
+    public static <EE extends Element> BinaryFormat<EE> fixedWidth(int width, RecordCodec<EE> codec) {
+      if (width <= 0) {
+        throw new IllegalArgumentException("Width must be positive: " + width);
+      }
+      return new BinaryFormat<>(codec, width);
+    }
+
+    /**
+     * Size of each of a file's two buffers. Records bigger than a buffer work,
+     * just less efficiently.
+     * @param bufferSize bytes; 256k by default
+     * @return this format
+     */
+    public BinaryFormat<EE> bufferSize(int bufferSize) {
+      if (bufferSize < Integer.BYTES) {
+        throw new IllegalArgumentException("Buffer too small: " + bufferSize);
+      }
+      this.bufferSize = bufferSize;
+      return this;
+    }
+
+    public int getBufferSize() {
+      return bufferSize;
+    }
+
+    /**
+     * Read ahead and write behind on the I/O threads, or do all of it on the
+     * caller's thread.
+     * @param async true, the default, for background I/O
+     * @return this format
+     */
+    public BinaryFormat<EE> async(boolean async) {
+      this.async = async;
+      return this;
+    }
+
+    /**
+     * Most threads reading ahead and writing behind at once, for all the files
+     * of this format; more files than that queue for them. Something like run
+     * threads plus the larger of merge threads and final merge segments keeps
+     * every pass busy.
+     * @param ioThreads thread count; the processor count by default
+     * @return this format
+     */
+    public BinaryFormat<EE> ioThreads(int ioThreads) {
+      if (ioThreads < 1) {
+        throw new IllegalArgumentException("I/O threads must be at least 1: " + ioThreads);
+      }
+      this.ioThreads = ioThreads;
+      return this;
+    }
+
+    /**
+     * Let go of what the format holds between sorts: the pooled buffers are
+     * dropped for the GC, and the I/O threads end once their queued reads and
+     * writes are done. The format stays usable; later files start afresh.
+     */
+    public void release() {
+      ThreadPoolExecutor was;
+      synchronized (this) {
+        was = io;
+        io = null;
+      }
+      if (was != null) {
+        was.shutdown();
+      }
+      buffers.clear();
+    }
+
+    public IterMaker<EE> iterMaker() {
+      return iterMaker(bufferSize);
+    }
+
+    public AppenderMaker<EE> appenderMaker() {
+      return appenderMaker(bufferSize);
+    }
+
+    private IterMaker<EE> iterMaker(int size) {
+      return f -> new BinaryIterator<>(this, FileChannel.open(f.toPath(), READ), size);
+    }
+
+    private AppenderMaker<EE> appenderMaker(int size) {
+      return f -> new BinaryAppender<>(this, FileChannel.open(f.toPath(), CREATE_NEW, WRITE), size);
+    }
+
+    private ByteBuffer take(int size) {
+      ConcurrentLinkedQueue<ByteBuffer> q = buffers.get(size);
+      ByteBuffer b = (q == null) ? null : q.poll();
+      if (b == null) {
+        return ByteBuffer.allocateDirect(size);
+      }
+      b.clear();
+      return b;
+    }
+
+    private void give(ByteBuffer b) {
+      if (b != null) {
+        buffers.computeIfAbsent(b.capacity(), k -> new ConcurrentLinkedQueue<>()).offer(b);
+      }
+    }
+
+    int pooled() {
+      return buffers.values().stream().mapToInt(ConcurrentLinkedQueue::size).sum();
+    }
+
+    private <T> Future<T> submit(Callable<T> task) throws IOException {
+      // on an I/O thread, or right here
+      if (!async) {
+        try {
+          return CompletableFuture.completedFuture(task.call());
+        } catch (IOException | RuntimeException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new IOException(e);
+        }
+      }
+      synchronized (this) {
+        if (io == null) {
+          io = new ThreadPoolExecutor(ioThreads, ioThreads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "ReplacementDiskSort io");
+            t.setDaemon(true);
+            return t;
+          });
+          // idle threads exit, so nothing lingers between sorts
+          io.allowCoreThreadTimeOut(true);
+        }
+        return io.submit(task);
+      }
+    }
+  }
+
+  /**
+   * Appender half of a BinaryFormat: fills one buffer while the other is written.
+   */
+  private static final class BinaryAppender<EE extends Element> implements ExternalAppender<EE> {
+    private final BinaryFormat<EE> format;
+    private final FileChannel fc;
+    private ByteBuffer current;
+    private ByteBuffer spare;
+    private Future<ByteBuffer> writing = null;
+
+    BinaryAppender(BinaryFormat<EE> format, FileChannel fc, int bufferSize) {
+      this.format = format;
+      this.fc = fc;
+      this.current = format.take(bufferSize);
+      this.spare = format.take(bufferSize);
+    }
+
+    @Override
+    public void append(EE elem) throws IOException {
+      int size = format.codec.size(elem);
+      if (format.width > 0 && size != format.width) {
+        throw new IOException("Record of " + size + " bytes; width is " + format.width);
+      }
+      int framed = (format.width > 0) ? size : Integer.BYTES + size;
+      if (current.remaining() < framed) {
+        writeBehind();
+      }
+      ByteBuffer dest = current;
+      if (dest.remaining() < framed) {
+        // bigger than a buffer; goes straight out once what's ahead of it is written
+        dest = ByteBuffer.allocate(framed);
+      }
+      if (format.width <= 0) {
+        dest.putInt(size);
+      }
+      int at = dest.position();
+      format.codec.write(elem, dest);
+      if (dest.position() - at != size) {
+        throw new IOException("Codec wrote " + (dest.position() - at) + " bytes, sized " + size);
+      }
+      if (dest != current) {
+        awaitWrite();
+        dest.flip();
+        writeFully(fc, dest);
+      }
+    }
+
+    private void writeBehind() throws IOException {
+      // hand the full buffer to the writer, carry on with the other one
+      awaitWrite();
+      ByteBuffer full = current;
+      full.flip();
+      current = spare;
+      spare = null;
+      writing = format.submit(() -> {
+        writeFully(fc, full);
+        full.clear();
+        return full;
+      });
+    }
+
+    private void awaitWrite() throws IOException {
+      if (writing != null) {
+        spare = join(writing);
+        writing = null;
+      }
+    }
+
+    @Override
+    public void close() {
+      try {
+        awaitWrite();
+        current.flip();
+        writeFully(fc, current);
+        fc.close();
+        format.give(current);
+        format.give(spare);
+        current = null;
+        spare = null;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * Iterator half of a BinaryFormat: works through one buffer while the next is
+   * read. A record split across the two is put together in a scratch buffer.
+   */
+  private static final class BinaryIterator<EE extends Element> implements ExternalIterator<EE> {
+    private final BinaryFormat<EE> format;
+    private final FileChannel fc;
+    private ByteBuffer current;
+    private Future<ByteBuffer> reading;
+    private ByteBuffer scratch = ByteBuffer.allocate(0);
+    private long readPos = 0;
+    private boolean eof = false;
+    private boolean closed = false;
+
+    BinaryIterator(BinaryFormat<EE> format, FileChannel fc, int bufferSize) throws IOException {
+      this.format = format;
+      this.fc = fc;
+      this.current = format.take(bufferSize);
+      current.limit(0);
+      this.reading = readAhead(format.take(bufferSize));
+    }
+
+    private Future<ByteBuffer> readAhead(ByteBuffer b) throws IOException {
+      // fill b from where the last read stopped; reads never overlap
+      b.clear();
+      return format.submit(() -> {
+        while (b.hasRemaining()) {
+          int n = fc.read(b, readPos);
+          if (n < 0) {
+            break;
+          }
+          readPos = readPos + n;
+        }
+        b.flip();
+        return b;
+      });
+    }
+
+    private boolean nextBuffer() throws IOException {
+      // swap in the buffer read ahead, and start reading into this one; false at end of file
+      if (eof) {
+        return false;
+      }
+      ByteBuffer done = current;
+      current = join(reading);
+      reading = null;
+      if (current.limit() < current.capacity()) {
+        eof = true;
+        format.give(done);
+      } else {
+        reading = readAhead(done);
+      }
+      return current.hasRemaining();
+    }
+
+    private ByteBuffer record(int len) throws IOException {
+      // exactly len bytes, in place if they are all in this buffer
+      if (current.remaining() >= len) {
+        ByteBuffer ret = current.slice();
+        ret.limit(len);
+        current.position(current.position() + len);
+        return ret;
+      }
+      if (scratch.capacity() < len) {
+        scratch = ByteBuffer.allocate(Math.max(len, scratch.capacity() * 2));
+      }
+      scratch.clear();
+      scratch.limit(len);
+      while (scratch.hasRemaining()) {
+        if (!current.hasRemaining() && !nextBuffer()) {
+          throw new EOFException("Truncated record");
+        }
+        int n = Math.min(scratch.remaining(), current.remaining());
+        ByteBuffer part = current.slice();
+        part.limit(n);
+        scratch.put(part);
+        current.position(current.position() + n);
+      }
+      scratch.flip();
+      return scratch;
+    }
+
+    @Override
+    public EE next() throws IOException {
+      if (!current.hasRemaining() && !nextBuffer()) {
+        close();
+        return null;
+      }
+      int len = (format.width > 0) ? format.width : record(Integer.BYTES).getInt();
+      if (len < 0) {
+        throw new IOException("Bad record length: " + len);
+      }
+      return format.codec.read(record(len));
+    }
+
+    @Override
+    public void close() throws IOException {
+      // let any read ahead finish before the channel goes
+      if (!closed) {
+        closed = true;
+        eof = true;
+        format.give(current);
+        current = ByteBuffer.allocate(0);
+        try {
+          if (reading != null) {
+            format.give(join(reading));
+          }
+        } finally {
+          reading = null;
+          fc.close();
+        }
+      }
+    }
+  }
+
   private final AppenderMaker<E> appenderMaker;
   private final Comparator<E> comp;
+  private final Comparator<E> elementComp;
   private final boolean deleteFiles;
   private final IterMaker<E> iteratorMaker;
   private final AtomicInteger filenameCounter = new AtomicInteger(0);
   protected File workDirectory;
-  private final List<PassInfo> runPassInfo = new ArrayList<>();
+  private final List<PassInfo> runPassInfo = Collections.synchronizedList(new ArrayList<>());
   private PrintStream verbose = System.out;
+  private int runThreads = 1;
+  // elements per block dealt to a run worker
+  private static final int DEAL_BLOCK = 1024;
+  private int mergeThreads = 1;
+  private int finalMergeSegments = 1;
+  // reservoir of elements seen in pass 0, for final merge splitters
+  private static final int SAMPLES = 1024;
+  private final List<E> samples = new ArrayList<>();
+  private MergeStrategy mergeStrategy = MergeStrategy.LOSER_TREE;
+  // memory budget mode; a format's buffers are sized per sort, 0 for its own size
+  private static final long DEFAULT_STREAM_BYTES = 64 * 1024;
+  private static final int MIN_IO_BUFFER = 4 * 1024;
+  private static final int TARGET_FAN_IN = 64;
+  private static final int MIN_FAN_IN = 3;
+  private BinaryFormat<E> format = null;
+  private Sizer<E> sizer = null;
+  private long memoryBudget = 0;
+  private long streamBytes = DEFAULT_STREAM_BYTES;
+  private int ioBufferSize = 0;
+  private final AtomicLong sizedBytes = new AtomicLong();
+  private final AtomicLong sizedCount = new AtomicLong();
 
   /**
    * Constructor.
@@ -193,6 +708,7 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
 
     this.iteratorMaker = iteratorMaker;
     this.appenderMaker = appenderMaker;
+    this.elementComp = comp;
     this.comp = (c1, c2) -> {
       int ret = Integer.compare(c1.getRun(), c2.getRun());
       if (ret == 0) { return comp.compare(c1, c2); }
@@ -201,6 +717,17 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
     this.deleteFiles = deleteFiles;
   }
 
+  /**
+   * Constructor, for files in one of the built-in binary formats.
+   * @param format binary format, for both runs and the final file
+   * @param comp Comparator for your subclass of Element
+   * @param deleteFiles delete the intermediate files as you go
+   */
+  public ReplacementDiskSort(BinaryFormat<E> format, Comparator<E> comp, boolean deleteFiles) {
+    this(format.iterMaker(), format.appenderMaker(), comp, deleteFiles);
+    this.format = format;
+  }
+
   /**
    * Single method to do a single run.
    * @param iteratorMaker maker for iterator.
@@ -243,6 +770,125 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
     return this;
   }
 
+  /**
+   * Generate runs on this many threads. The calling thread reads the source and
+   * deals it out in blocks; each worker runs replacement selection over its share,
+   * with maxElementsForRuns / runThreads elements in its heap, so memory use is
+   * about the same, and writes its own run files. Each worker adds its own pass 0
+   * PassInfo.
+   * @param runThreads worker count; 1, the default, generates runs on the calling thread
+   * @return this sort
+   */
+  public ReplacementDiskSort<E> setRunThreads(int runThreads) {
+    if (runThreads < 1) {
+      throw new IllegalArgumentException("Run threads must be at least 1: " + runThreads);
+    }
+    this.runThreads = runThreads;
+    return this;
+  }
+
+  /**
+   * Run the independent merge groups of each pass on up to this many threads.
+   * Each concurrent merge has its own appender and iterators, so memory use
+   * grows with the thread count.
+   * @param mergeThreads thread count; 1, the default, merges one group at a time
+   * @return this sort
+   */
+  public ReplacementDiskSort<E> setMergeThreads(int mergeThreads) {
+    if (mergeThreads < 1) {
+      throw new IllegalArgumentException("Merge threads must be at least 1: " + mergeThreads);
+    }
+    this.mergeThreads = mergeThreads;
+    return this;
+  }
+
+  /**
+   * Split the final merge into this many key ranges, merged in parallel into
+   * separate segment files that are then concatenated into the result. The
+   * splitters come from a sample of the elements taken during run generation.
+   * Iterators only read forward, so each segment reads every input from the start
+   * up to its upper splitter, skipping what falls below its lower one; this pays
+   * when the merge is bound by comparisons and appends rather than reads. The
+   * appender's files must still be valid when concatenated, so no headers or
+   * trailers.
+   * @param finalMergeSegments segment count; 1, the default, merges to one file
+   * @return this sort
+   */
+  public ReplacementDiskSort<E> setFinalMergeSegments(int finalMergeSegments) {
+    if (finalMergeSegments < 1) {
+      throw new IllegalArgumentException("Final merge segments must be at least 1: " + finalMergeSegments);
+    }
+    this.finalMergeSegments = finalMergeSegments;
+    return this;
+  }
+
+  /**
+   * How merge passes pick the next element.
+   * @param mergeStrategy strategy; LOSER_TREE is the default
+   * @return this sort
+   */
+  public ReplacementDiskSort<E> setMergeStrategy(MergeStrategy mergeStrategy) {
+    this.mergeStrategy = Objects.requireNonNull(mergeStrategy);
+    return this;
+  }
+
+  /**
+   * Estimate element sizes with this. Needed for setMemoryBudget(); with it,
+   * each PassInfo also reports its estimated peak memory.
+   * @param sizer element sizer
+   * @return this sort
+   */
+  public ReplacementDiskSort<E> setSizer(Sizer<E> sizer) {
+    this.sizer = Objects.requireNonNull(sizer);
+    return this;
+  }
+
+  /**
+   * Memory budget for run(src, dest, workingDirectory), which sizes everything
+   * to fit it rather than taking element counts. Run generation keeps elements
+   * in its heap up to what is left after the source iterator and run appenders'
+   * buffers. Merges take as many files at once as fit, counting each file's
+   * buffers and its head element at the average size seen while generating runs;
+   * concurrent merges (setMergeThreads(), setFinalMergeSegments()) split the
+   * budget between them. With a BinaryFormat, its buffers are shrunk to leave room
+   * for a wide merge. The blocks in flight to parallel run workers are not counted.
+   * @param budgetBytes budget in bytes
+   * @return this sort
+   */
+  public ReplacementDiskSort<E> setMemoryBudget(long budgetBytes) {
+    if (budgetBytes <= 0) {
+      throw new IllegalArgumentException("Memory budget must be positive: " + budgetBytes);
+    }
+    this.memoryBudget = budgetBytes;
+    return this;
+  }
+
+  /**
+   * What one open iterator or appender holds in buffers, for the memory budget
+   * and peak estimates. BinaryFormat sorts know their own; otherwise this is 64k
+   * unless set.
+   * @param streamBytes bytes per open file
+   * @return this sort
+   */
+  public ReplacementDiskSort<E> setStreamBytes(long streamBytes) {
+    if (streamBytes < 0) {
+      throw new IllegalArgumentException("Stream bytes must not be negative: " + streamBytes);
+    }
+    this.streamBytes = streamBytes;
+    return this;
+  }
+
+  private long streamBytes() {
+    if (format == null) {
+      return streamBytes;
+    }
+    return 2L * (ioBufferSize > 0 ? ioBufferSize : format.getBufferSize());
+  }
+
+  private long sizeOf(E elem) {
+    return (sizer == null) ? 0 : sizer.sizeOf(elem);
+  }
+
   private void verbose(String fmt, Object... args) {
     if (verbose != null) {
       verbose.println(String.format(fmt, args));
@@ -254,6 +900,51 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
                                int maxElementsForMerges,
                                File dest,
                                File workingDirectory) throws IOException {
+    prepare(src, dest, workingDirectory);
+    ioBufferSize = 0;
+    merge(makeRuns(src, maxElementsForRuns, false), maxElementsForMerges, dest);
+  }
+
+  /**
+   * Sort within the memory budget; see setMemoryBudget().
+   * @param src source file
+   * @param dest destination file. Cannot be the same as source file.
+   * @param workingDirectory working directory
+   * @throws IOException on exception
+   */
+  public synchronized void run(File src, File dest, File workingDirectory) throws IOException {
+    if (memoryBudget <= 0 || sizer == null) {
+      throw new IllegalStateException("Budgeted sort needs a memory budget and a sizer");
+    }
+    prepare(src, dest, workingDirectory);
+    int concurrent = Math.max(mergeThreads, finalMergeSegments);
+    ioBufferSize = 0;
+    if (format != null) {
+      // buffers for a TARGET_FAN_IN merge in half of each merge's share
+      long size = memoryBudget / (4L * (TARGET_FAN_IN + 1) * concurrent);
+      ioBufferSize = (int) Math.max(MIN_IO_BUFFER, Math.min(size, format.getBufferSize()));
+    }
+    long stream = streamBytes();
+    long heap = memoryBudget - (runThreads + 1) * stream;
+    if (heap <= 0 || memoryBudget / concurrent < (MIN_FAN_IN + 1) * stream) {
+      throw new IllegalArgumentException("Memory budget of " + memoryBudget + " bytes is too small for " + stream +
+                                         " bytes per open file");
+    }
+    sizedBytes.set(0);
+    sizedCount.set(0);
+    verbose("Memory budget %d bytes: %d heap bytes for runs, %d bytes per open file", memoryBudget, heap, stream);
+    List<File> runs = makeRuns(src, heap, true);
+
+    // each merge's share holds its files' buffers, and a head element per input
+    long avg = Math.max(1, sizedBytes.get() / Math.max(1, sizedCount.get()));
+    long fanIn = (memoryBudget / concurrent - stream) / (stream + avg);
+    int maxElementsForMerges = (int) Math.max(MIN_FAN_IN, Math.min(Integer.MAX_VALUE, fanIn));
+    verbose("Memory budget %d bytes: %d byte elements on average, merging %d files at once", memoryBudget, avg,
+      maxElementsForMerges);
+    merge(runs, maxElementsForMerges, dest);
+  }
+
+  private void prepare(File src, File dest, File workingDirectory) throws IOException {
     if (!src.exists() || !src.canRead()) {
       throw new IOException("Can't read source file: [" + src + "]");
     }
@@ -265,29 +956,60 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
         "Can't write to working directory/does not exist/not directory: [" + workingDirectory + "]");
     }
     this.workDirectory = workingDirectory;
+    samples.clear();
+  }
 
-    List<File> current = makeRuns(src, maxElementsForRuns);
-    List<File> next = new ArrayList<>();
-
+  private void merge(List<File> current, int maxElementsForMerges, File dest) throws IOException {
     int pass = 1;
 
-    while (current.size() > 1) {
-      while (!current.isEmpty()) {
-        List<File> subFiles;
-        if (current.size() < maxElementsForMerges) {
-          subFiles = current;
-        } else if (current.size() < 2 * maxElementsForMerges) {
-          subFiles = current.subList(0, current.size() / 2);
-        } else {
-          subFiles = current.subList(0, maxElementsForMerges);
+    // intermediate merges are held to mergeThreads at once; only the final one runs wider
+    ExecutorService pool = (mergeThreads > 1) ? mergePool(mergeThreads) : null;
+    try {
+      while (current.size() > 1) {
+        if (finalMergeSegments > 1 && current.size() < maxElementsForMerges && samples.size() >= finalMergeSegments) {
+          ExecutorService segmentPool = mergePool(finalMergeSegments);
+          try {
+            current = singletonList(finalMerge(pass++, current, segmentPool));
+          } finally {
+            segmentPool.shutdownNow();
+          }
+          break;
+        }
+        // the groups of a pass are independent
+        List<List<File>> groups = new ArrayList<>();
+        while (!current.isEmpty()) {
+          List<File> subFiles;
+          if (current.size() < maxElementsForMerges) {
+            subFiles = current;
+          } else if (current.size() < 2 * maxElementsForMerges) {
+            subFiles = current.subList(0, current.size() / 2);
+          } else {
+            subFiles = current.subList(0, maxElementsForMerges);
+          }
+          groups.add(new ArrayList<>(subFiles));
+          subFiles.clear();
+        }
+        List<File> next = new ArrayList<>();
+        List<Future<File>> merges = new ArrayList<>();
+        for (List<File> group : groups) {
+          File interim = passFile(pass);
+          int p = pass++;
+          if (mergeThreads > 1 && groups.size() > 1) {
+            merges.add(pool.submit(() -> mergePass(p, group, interim)));
+          } else {
+            mergePass(p, group, interim);
+          }
+          next.add(interim);
+        }
+        for (Future<File> f : merges) {
+          join(f);
         }
-        File interim = passFile(pass);
-        mergePass(pass++, subFiles, interim);
-        subFiles.clear();
-        next.add(interim);
+        current = next;
+      }
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
       }
-      current = next;
-      next = new ArrayList<>();
     }
 
     Files.move(current.get(0).toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
@@ -295,26 +1017,69 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
       runPassInfo.stream().mapToLong(rp -> rp.runTimeMS).sum());
   }
 
+  private static ExecutorService mergePool(int threads) {
+    return Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "ReplacementDiskSort merge worker");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
   private File passFile(int pass) {
     return new File(workDirectory, "pass-" + pass + "-" + filenameCounter.getAndIncrement());
   }
 
   protected List<File> makeRuns(File src, int maxElementsForRuns) throws IOException {
+    return makeRuns(src, maxElementsForRuns, false);
+  }
+
+  private List<File> makeRuns(File src, long heapLimit, boolean limitBytes) throws IOException {
     verbose("Pass 0: Generating Runs...");
-    PriorityQueue<E> q = new PriorityQueue<>(maxElementsForRuns, this.comp);
+    if (runThreads > 1) {
+      return makeRunsParallel(src, heapLimit, limitBytes);
+    }
     long msStart = System.currentTimeMillis();
-
-    ExternalIterator<E> elements = iteratorMaker.make(src);
-
     ArrayList<File> files = new ArrayList<>();
+    ArrayList<Long> runCounts = new ArrayList<>();
+    long peak = replacementSelection(openIter(src), heapLimit, limitBytes, files, runCounts, "Pass 0");
+    long tookMS = System.currentTimeMillis() - msStart;
+    peak = (sizer == null) ? -1 : peak + 2 * streamBytes();
+    this.runPassInfo.add(new PassInfo(0, singletonList(src), new ArrayList<>(files), runCounts, tookMS, peak));
+    return files;
+  }
+
+  private long replacementSelection(ExternalIterator<E> elements,
+                                    long heapLimit,
+                                    boolean limitBytes,
+                                    List<File> files,
+                                    List<Long> runCounts,
+                                    String label) throws IOException {
+    // the heap holds up to heapLimit elements, or estimated bytes if limitBytes; returns its peak bytes
+    PriorityQueue<E> q = new PriorityQueue<>((int) Math.min(heapLimit, DEAL_BLOCK), this.comp);
+    List<E> reservoir = (finalMergeSegments > 1) ? new ArrayList<>(SAMPLES) : null;
+    long seen = 0;
+    Footprint heap = new Footprint();
+    long held = 0;
+    long totalBytes = 0;
+    E pending = null;
+    long pendingBytes = 0;
 
     // fill the queue first. all pass 0.
-    for (int i = 0; i < maxElementsForRuns; i++) {
-      E p = elements.next();
-      if (p != null) {
-        q.add(p);
+    boolean doneReading = false;
+    while (!doneReading) {
+      pending = elements.next();
+      if (pending == null) {
+        doneReading = true;
       } else {
-        break;
+        pendingBytes = sizeOf(pending);
+        totalBytes = totalBytes + pendingBytes;
+        if (!q.isEmpty() && held + (limitBytes ? pendingBytes : 1) > heapLimit) {
+          break;
+        }
+        q.add(pending);
+        heap.add(pendingBytes);
+        held = held + (limitBytes ? pendingBytes : 1);
+        pending = null;
       }
     }
 
@@ -323,11 +1088,12 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
     ExternalAppender<E> output = makeAppender(f);
     files.add(f);
     int count = 0;
-    boolean doneReading = false;
-    ArrayList<Long> runCounts = new ArrayList<>();
 
     while (!q.isEmpty()) {
       E val = q.poll();
+      long valBytes = sizeOf(val);
+      heap.add(-valBytes);
+      held = held - (limitBytes ? valBytes : 1);
       // if no more from this run, roll run file
       if (val.getRun() != currentRun) {
         runCounts.add((long) count);
@@ -336,36 +1102,191 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
         ++currentRun;
         output = makeAppender(f);
         files.add(f);
-        verbose("Pass 0: Generated run %d with %d elements...", currentRun, count);
+        verbose("%s: Generated run %d with %d elements...", label, currentRun, count);
         count = 0;
       }
       // write it
       output.append(val);
       count++;
-      // if we have another
-      if (!doneReading) {
-        E newVal = elements.next();
-        if (newVal != null) {
-          newVal.setRun(currentRun);
-          // if it is out of order wrt last written value
-          if (comp.compare(newVal, val) < 0) {
-            // future run
-            newVal.setRun(currentRun + 1);
+      seen++;
+      if (reservoir != null) {
+        sample(reservoir, seen, val);
+      }
+      // take in more while they fit; by count, that's just the one
+      while (pending != null || !doneReading) {
+        if (pending == null) {
+          pending = elements.next();
+          if (pending == null) {
+            doneReading = true;
+            break;
           }
-          // add new one back in.
-          q.add(newVal);
-        } else {
-          doneReading = true;
+          pendingBytes = sizeOf(pending);
+          totalBytes = totalBytes + pendingBytes;
+        }
+        if (!q.isEmpty() && held + (limitBytes ? pendingBytes : 1) > heapLimit) {
+          break;
         }
+        pending.setRun(currentRun);
+        // if it is out of order wrt last written value
+        if (comp.compare(pending, val) < 0) {
+          // future run
+          pending.setRun(currentRun + 1);
+        }
+        // add new one back in.
+        q.add(pending);
+        heap.add(pendingBytes);
+        held = held + (limitBytes ? pendingBytes : 1);
+        pending = null;
       }
     }
-    verbose("Pass 0: Generated run %d with %d elements...", currentRun, count);
+    verbose("%s: Generated run %d with %d elements...", label, currentRun, count);
     runCounts.add((long) count);
 
     output.close();
-    long tookMS = System.currentTimeMillis() - msStart;
-    this.runPassInfo.add(new PassInfo(0, singletonList(src), new ArrayList<>(files), runCounts, tookMS));
-    return files;
+    if (reservoir != null) {
+      synchronized (samples) {
+        samples.addAll(reservoir);
+      }
+    }
+    sizedBytes.addAndGet(totalBytes);
+    sizedCount.addAndGet(seen);
+    return heap.peak;
+  }
+
+  private static <T> void sample(List<T> reservoir, long seen, T t) {
+    // reservoir sampling: each element seen so far is in it with equal odds
+    if (reservoir.size() < SAMPLES) {
+      reservoir.add(t);
+    } else {
+      long i = ThreadLocalRandom.current().nextLong(seen);
+      if (i < SAMPLES) {
+        reservoir.set((int) i, t);
+      }
+    }
+  }
+
+  private List<File> makeRunsParallel(File src, long heapLimit, boolean limitBytes) throws IOException {
+    // each worker gets its share of the heap, and a short queue of blocks to work through
+    long heap = Math.max(1, heapLimit / runThreads);
+    int block = limitBytes ? DEAL_BLOCK : (int) Math.min(DEAL_BLOCK, heap);
+    List<BlockingQueue<List<E>>> queues = new ArrayList<>();
+    List<Future<PassInfo>> work = new ArrayList<>();
+    ExecutorService pool = Executors.newFixedThreadPool(runThreads, r -> {
+      Thread t = new Thread(r, "ReplacementDiskSort run worker");
+      t.setDaemon(true);
+      return t;
+    });
+    try {
+      for (int w = 0; w < runThreads; w++) {
+        BlockingQueue<List<E>> queue = new ArrayBlockingQueue<>(2);
+        String label = "Pass 0 worker " + w;
+        queues.add(queue);
+        work.add(pool.submit(() -> {
+          long msStart = System.currentTimeMillis();
+          ArrayList<File> files = new ArrayList<>();
+          ArrayList<Long> runCounts = new ArrayList<>();
+          long peak = replacementSelection(new DealtIterator(queue), heap, limitBytes, files, runCounts, label);
+          long tookMS = System.currentTimeMillis() - msStart;
+          peak = (sizer == null) ? -1 : peak + streamBytes();
+          return new PassInfo(0, singletonList(src), files, runCounts, tookMS, peak);
+        }));
+      }
+      ExternalIterator<E> elements = openIter(src);
+      for (int w = 0; ; w = (w + 1) % runThreads) {
+        List<E> b = new ArrayList<>(block);
+        E p;
+        while (b.size() < block && (p = elements.next()) != null) {
+          b.add(p);
+        }
+        if (!b.isEmpty()) {
+          deal(queues.get(w), b, work.get(w));
+        }
+        if (b.size() < block) {
+          break;
+        }
+      }
+      // an empty block ends each worker's input
+      for (int w = 0; w < runThreads; w++) {
+        deal(queues.get(w), Collections.emptyList(), work.get(w));
+      }
+      ArrayList<File> files = new ArrayList<>();
+      for (Future<PassInfo> f : work) {
+        PassInfo pi = join(f);
+        this.runPassInfo.add(pi);
+        files.addAll(pi.getDestFiles());
+      }
+      return files;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      throw ioException(e);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static <T> T join(Future<T> f) throws IOException {
+    // a worker's result, with its IOException as is
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      throw ioException(e);
+    }
+  }
+
+  private static IOException ioException(ExecutionException e) {
+    if (e.getCause() instanceof IOException) {
+      return (IOException) e.getCause();
+    }
+    return new IOException(e.getCause());
+  }
+
+  private void deal(BlockingQueue<List<E>> queue, List<E> block, Future<PassInfo> worker)
+    throws InterruptedException, ExecutionException, IOException {
+    // hand a block to a worker, unless it has died
+    while (!queue.offer(block, 10, TimeUnit.MILLISECONDS)) {
+      if (worker.isDone()) {
+        worker.get();
+        throw new IOException("Run worker quit early");
+      }
+    }
+  }
+
+  /**
+   * A run worker's input: blocks of elements dealt to it by the reading thread,
+   * until an empty one.
+   */
+  private class DealtIterator implements ExternalIterator<E> {
+    private final BlockingQueue<List<E>> queue;
+    private List<E> block = Collections.emptyList();
+    private int pos = 0;
+    private boolean done = false;
+
+    DealtIterator(BlockingQueue<List<E>> queue) {
+      this.queue = queue;
+    }
+
+    @Override
+    public E next() throws IOException {
+      while (pos == block.size()) {
+        if (done) {
+          return null;
+        }
+        try {
+          block = queue.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+        pos = 0;
+        done = block.isEmpty();
+      }
+      return block.get(pos++);
+    }
   }
 
   public List<PassInfo> getPassInfo() {
@@ -376,10 +1297,33 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
     if (f.exists()) {
       throw new IOException("File: " + f + " exists; expected it to be missing");
     }
+    if (format != null && ioBufferSize > 0) {
+      return format.appenderMaker(ioBufferSize).make(f);
+    }
     return appenderMaker.make(f);
   }
 
-  private void writeFully(FileChannel ch, ByteBuffer slice) throws IOException {
+  private ExternalIterator<E> openIter(File f) throws IOException {
+    if (format != null && ioBufferSize > 0) {
+      return format.iterMaker(ioBufferSize).make(f);
+    }
+    return iteratorMaker.make(f);
+  }
+
+  /**
+   * Running total of estimated bytes held, and its high-water mark.
+   */
+  private static final class Footprint {
+    private long now = 0;
+    private long peak = 0;
+
+    void add(long bytes) {
+      now = now + bytes;
+      peak = Math.max(peak, now);
+    }
+  }
+
+  private static void writeFully(FileChannel ch, ByteBuffer slice) throws IOException {
     while (slice.hasRemaining()) {
       ch.write(slice);
     }
@@ -387,36 +1331,103 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
 
   private class FileHead {
     private final ExternalIterator<E> iter;
+    private final Footprint footprint;
     private E next;
+    private long nextBytes = 0;
 
     public FileHead(File f) throws IOException {
-      this.iter = iteratorMaker.make(f);
+      this(f, null, null);
+    }
+
+    public FileHead(File f, E from, Footprint footprint) throws IOException {
+      // positioned at the first element not below from, if any; its size counted in footprint
+      this.iter = openIter(f);
+      this.footprint = footprint;
       this.next = iter.next();
+      while (from != null && next != null && elementComp.compare(next, from) < 0) {
+        next = iter.next();
+      }
+      held();
+    }
+
+    private void held() {
+      if (footprint != null) {
+        long bytes = (next == null) ? 0 : sizeOf(next);
+        footprint.add(bytes - nextBytes);
+        nextBytes = bytes;
+      }
     }
 
     public boolean isDone() {
       return next == null;
     }
 
+    public void close() throws IOException {
+      iter.close();
+    }
+
     public E pullElement() throws IOException {
       E ret = next;
       if (ret != null) {
         next = iter.next();
+        held();
       }
       return ret;
     }
   }
 
   protected File mergePass(int pass, List<File> inputFiles, File dest) throws IOException {
+    mergeRange(pass, inputFiles, dest, null, null);
+    if (deleteFiles) {
+      for (File file : inputFiles) {
+        file.delete();
+      }
+    }
+    return dest;
+  }
+
+  private long mergeRange(int pass, List<File> inputFiles, File dest, E from, E to) throws IOException {
+    // merge the elements in [from, to) of the inputs; null for unbounded
     verbose("Merge pass %d: for %s...", pass, inputFiles);
     long startMS = System.currentTimeMillis();
+    List<FileHead> heads = new ArrayList<>(inputFiles.size());
+    Footprint footprint = (sizer == null) ? null : new Footprint();
+    long cnt;
+    try {
+      for (File file : inputFiles) {
+        heads.add(new FileHead(file, from, footprint));
+      }
+      ExternalAppender<E> output = makeAppender(dest);
+      if (mergeStrategy == MergeStrategy.PRIORITY_QUEUE) {
+        cnt = mergeQueue(heads, to, output);
+      } else if (heads.size() == 2) {
+        cnt = mergeTwo(heads.get(0), heads.get(1), to, output);
+      } else {
+        cnt = new LoserTree(heads, to).merge(output);
+      }
+      output.close();
+    } finally {
+      // a range stops short of the end of its inputs, so they are still open
+      close(heads);
+    }
+    long tookMS = System.currentTimeMillis() - startMS;
+    long peak = (footprint == null) ? -1 : footprint.peak + (inputFiles.size() + 1) * streamBytes();
+    PassInfo pi =
+      new PassInfo(pass, new ArrayList<>(inputFiles), singletonList(dest), singletonList(cnt), tookMS, peak);
+    runPassInfo.add(pi);
+    verbose("Merge pass %d: completed: %s elements in %dms", pass, pi.runCounts.get(0), pi.runTimeMS);
+    return cnt;
+  }
+
+  private long mergeQueue(List<FileHead> heads, E to, ExternalAppender<E> output) throws IOException {
+    // a poll and an add per element
     PriorityQueue<FileHead> q = new PriorityQueue<>((c1, c2) -> comp.compare(c1.next, c2.next));
-    for (File file : inputFiles) {
-      FileHead head = new FileHead(file);
-      q.add(head);
+    for (FileHead head : heads) {
+      if (below(head, to)) {
+        q.add(head);
+      }
     }
     long cnt = 0;
-    ExternalAppender<E> output = makeAppender(dest);
     while (!q.isEmpty()) {
       FileHead n = q.poll();
       E elem = n.pullElement();
@@ -424,20 +1435,180 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
         cnt++;
         output.append(elem);
       }
-      if (!n.isDone()) {
+      if (below(n, to)) {
         q.add(n);
       }
     }
-    output.close();
-    long tookMS = System.currentTimeMillis() - startMS;
+    return cnt;
+  }
+
+  private long mergeTwo(FileHead a, FileHead b, E to, ExternalAppender<E> output) throws IOException {
+    // one comparison per element while both have more, then a straight copy
+    boolean moreA = below(a, to);
+    boolean moreB = below(b, to);
+    long cnt = 0;
+    while (moreA && moreB) {
+      if (elementComp.compare(a.next, b.next) <= 0) {
+        output.append(a.pullElement());
+        moreA = below(a, to);
+      } else {
+        output.append(b.pullElement());
+        moreB = below(b, to);
+      }
+      cnt++;
+    }
+    FileHead rest = moreA ? a : b;
+    for (boolean more = moreA || moreB; more; more = below(rest, to)) {
+      output.append(rest.pullElement());
+      cnt++;
+    }
+    return cnt;
+  }
+
+  /**
+   * Tournament tree of losers over the file heads: internal node n holds the
+   * loser of the match played there, and the overall winner sits aside. After
+   * the winner's file advances, it replays only the matches on its path to the
+   * root, so one comparison per level. Heads with nothing left (in range) lose
+   * to everything. Elements read from files are all in run 0, so the element
+   * comparator is called directly.
+   */
+  private final class LoserTree {
+    private final List<FileHead> heads;
+    private final E to;
+    private final boolean[] more;
+    private final int[] losers;
+    private int winner;
+
+    LoserTree(List<FileHead> heads, E to) {
+      this.heads = heads;
+      this.to = to;
+      int k = heads.size();
+      this.more = new boolean[k];
+      this.losers = new int[Math.max(k, 1)];
+      for (int i = 0; i < k; i++) {
+        more[i] = below(heads.get(i), to);
+      }
+      // leaves are k..2k-1, node n's children 2n and 2n+1; play every match once
+      int[] winners = new int[2 * k];
+      for (int i = 0; i < k; i++) {
+        winners[k + i] = i;
+      }
+      for (int n = k - 1; n > 0; n--) {
+        int a = winners[2 * n];
+        int b = winners[2 * n + 1];
+        boolean aWins = beats(a, b);
+        winners[n] = aWins ? a : b;
+        losers[n] = aWins ? b : a;
+      }
+      this.winner = (k == 0) ? -1 : winners[1];
+    }
+
+    private boolean beats(int a, int b) {
+      if (!more[a]) {
+        return false;
+      }
+      if (!more[b]) {
+        return true;
+      }
+      int c = elementComp.compare(heads.get(a).next, heads.get(b).next);
+      return c < 0 || (c == 0 && a < b);
+    }
+
+    long merge(ExternalAppender<E> output) throws IOException {
+      int k = heads.size();
+      long cnt = 0;
+      while (winner >= 0 && more[winner]) {
+        FileHead head = heads.get(winner);
+        output.append(head.pullElement());
+        cnt++;
+        more[winner] = below(head, to);
+        // replay the winner's path to the root
+        int w = winner;
+        for (int n = (w + k) >>> 1; n > 0; n = n >>> 1) {
+          if (beats(losers[n], w)) {
+            int t = losers[n];
+            losers[n] = w;
+            w = t;
+          }
+        }
+        winner = w;
+      }
+      return cnt;
+    }
+  }
+
+  private void close(List<FileHead> heads) throws IOException {
+    IOException failed = null;
+    for (FileHead head : heads) {
+      try {
+        head.close();
+      } catch (IOException e) {
+        if (failed == null) {
+          failed = e;
+        } else {
+          failed.addSuppressed(e);
+        }
+      }
+    }
+    if (failed != null) {
+      throw failed;
+    }
+  }
+
+  private boolean below(FileHead head, E to) {
+    // head has more, and it falls below to; each file is sorted, so past that it's done
+    return !head.isDone() && (to == null || elementComp.compare(head.next, to) < 0);
+  }
+
+  private File finalMerge(int pass, List<File> inputFiles, ExecutorService pool) throws IOException {
+    // one segment per key range, merged in parallel, then concatenated
+    List<E> sorted;
+    synchronized (samples) {
+      sorted = new ArrayList<>(samples);
+    }
+    sorted.sort(elementComp);
+    List<File> parts = new ArrayList<>();
+    List<Future<Long>> merges = new ArrayList<>();
+    for (int i = 0; i < finalMergeSegments; i++) {
+      E from = (i == 0) ? null : sorted.get(i * sorted.size() / finalMergeSegments);
+      E to = (i == finalMergeSegments - 1) ? null : sorted.get((i + 1) * sorted.size() / finalMergeSegments);
+      File part = passFile(pass);
+      parts.add(part);
+      merges.add(pool.submit(() -> mergeRange(pass, inputFiles, part, from, to)));
+    }
+    long cnt = 0;
+    for (Future<Long> f : merges) {
+      cnt = cnt + join(f);
+    }
+    long startMS = System.currentTimeMillis();
+    File dest = passFile(pass);
+    concatenate(parts, dest);
+    for (File part : parts) {
+      part.delete();
+    }
     if (deleteFiles) {
       for (File file : inputFiles) {
         file.delete();
       }
     }
-    PassInfo pi = new PassInfo(pass, new ArrayList<>(inputFiles), singletonList(dest), singletonList(cnt), tookMS);
+    long tookMS = System.currentTimeMillis() - startMS;
+    PassInfo pi = new PassInfo(pass, parts, singletonList(dest), singletonList(cnt), tookMS, (sizer == null) ? -1 : 0);
     runPassInfo.add(pi);
-    verbose("Merge pass %d: completed: %s elements in %dms", pass, pi.runCounts.get(0), pi.runTimeMS);
+    verbose("Merge pass %d: concatenated %d segments: %s elements in %dms", pass, parts.size(), cnt, tookMS);
     return dest;
   }
+
+  private static void concatenate(List<File> parts, File dest) throws IOException {
+    try (FileChannel out = FileChannel.open(dest.toPath(), CREATE_NEW, WRITE)) {
+      for (File part : parts) {
+        try (FileChannel in = FileChannel.open(part.toPath(), READ)) {
+          long size = in.size();
+          for (long done = 0; done < size; ) {
+            done = done + in.transferTo(done, size - done, out);
+          }
+        }
+      }
+    }
+  }
 }
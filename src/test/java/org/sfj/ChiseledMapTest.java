@@ -22,8 +22,22 @@ import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -31,6 +45,7 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.fail;
 import static org.sfj.ChiseledMap.OpenOption.DONT_CARE;
 import static org.sfj.ChiseledMap.OpenOption.MUST_BE_NEW;
 import static org.sfj.ChiseledMap.OpenOption.MUST_EXIST;
@@ -200,4 +215,1099 @@ public class ChiseledMapTest {
     newKV.close();
     kv.close();
   }
+
+  @Test
+  public void testCompactionWhileWriting() throws IOException, InterruptedException {
+    File f = tmp.newFile();
+    ChiseledMap<Integer, String> kv = new ChiseledMap<>(f, DONT_CARE, null, null, null);
+    for (int i = 0; i < 10000; i++) {
+      kv.set(i % 1000, "first-" + i);
+    }
+    for (int i = 0; i < 500; i++) {
+      kv.remove(i);
+    }
+    assertThat(kv.deadRatio(), Matchers.greaterThan(0.9d));
+    long before = kv.bytesOnDisk();
+
+    // keep writing while we compact
+    AtomicBoolean stop = new AtomicBoolean(false);
+    Thread writer = new Thread(() -> {
+      int i = 0;
+      while (!stop.get()) {
+        kv.set(2000 + (i++ % 100), "second-" + i);
+      }
+    });
+    writer.start();
+    assertThat(kv.compact(), is(true));
+    stop.set(true);
+    writer.join();
+
+    assertThat(kv.bytesOnDisk(), Matchers.lessThan(before));
+    assertThat(kv.size(), is(600));
+    for (int i = 500; i < 1000; i++) {
+      assertThat(kv.get(i), is("first-" + (9000 + i)));
+    }
+    ConcurrentHashMap<Integer, String> shadow = new ConcurrentHashMap<>(kv);
+    long dead = kv.deadBytes();
+    kv.close();
+    ChiseledMap<Integer, String> again = new ChiseledMap<>(f, MUST_EXIST, null, null, null);
+    assertThat(again.size(), is(600));
+    assertThat(again.deadBytes(), is(dead));
+    for (Integer k : shadow.keySet()) {
+      assertThat(again.get(k), is(shadow.get(k)));
+    }
+    again.close();
+  }
+
+  @Test
+  public void testSegmentedLayout() throws IOException {
+    File dir = tmp.newFolder();
+    ChiseledMap.Config<Integer, String> config = new ChiseledMap.Config<Integer, String>().segmentSize(64 * 1024);
+    ChiseledMap<Integer, String> kv = config.open(dir, MUST_BE_NEW);
+    for (int i = 0; i < 20000; i++) {
+      kv.set(i % 2000, "value-" + i);
+    }
+    for (int i = 0; i < 1000; i++) {
+      kv.remove(i);
+    }
+    int segs = kv.segmentCount();
+    assertThat(segs, Matchers.greaterThan(10));
+    long before = kv.bytesOnDisk();
+    assertThat(kv.compact(), is(true));
+    assertThat(kv.segmentCount(), Matchers.lessThan(segs));
+    assertThat(kv.bytesOnDisk(), Matchers.lessThan(before));
+    assertThat(kv.size(), is(1000));
+    kv.set(5000, "after");
+    long dead = kv.deadBytes();
+    kv.close();
+
+    ChiseledMap<Integer, String> again = config.open(dir, MUST_EXIST);
+    assertThat(again.size(), is(1001));
+    assertThat(again.deadBytes(), is(dead));
+    for (int i = 1000; i < 2000; i++) {
+      assertThat(again.get(i), is("value-" + (18000 + i)));
+    }
+    assertThat(again.get(5000), is("after"));
+    assertThat(again.get(5), Matchers.nullValue());
+    again.close();
+  }
+
+  @Test
+  public void testMappedReads() throws IOException {
+    File dir = tmp.newFolder();
+    ChiseledMap.Config<Integer, String> config = new ChiseledMap.Config<Integer, String>().segmentSize(64 * 1024)
+      .mmapReads(true);
+    ChiseledMap<Integer, String> kv = config.open(dir, MUST_BE_NEW);
+    for (int i = 0; i < 9000; i++) {
+      kv.set(i % 3000, "value-" + i);
+      if (i % 7 == 0) {
+        assertThat(kv.get(i % 3000), is("value-" + i));
+        assertThat(kv.get(i / 2 % 3000), Matchers.notNullValue());
+      }
+    }
+    assertThat(kv.segmentCount(), Matchers.greaterThan(3));
+    assertThat(kv.compact(), is(true));
+    for (int i = 0; i < 3000; i++) {
+      assertThat(kv.get(i), is("value-" + (6000 + i)));
+    }
+    int cnt = 0;
+    for (Map.Entry<Integer, String> e : kv.entries()) {
+      assertThat(e.getValue(), is("value-" + (6000 + e.getKey())));
+      cnt++;
+    }
+    assertThat(cnt, is(3000));
+    kv.close();
+
+    ChiseledMap<Integer, String> again = config.open(dir, MUST_EXIST);
+    for (int i = 0; i < 3000; i++) {
+      assertThat(again.get(i), is("value-" + (6000 + i)));
+    }
+    again.close();
+
+    File f = new File(tmp.newFolder(), "single");
+    ChiseledMap<Integer, String> single = new ChiseledMap.Config<Integer, String>().mmapReads(true).open(f, MUST_BE_NEW);
+    for (int i = 0; i < 5000; i++) {
+      single.set(i, "v" + i);
+      assertThat(single.get(i), is("v" + i));
+    }
+    assertThat(single.get(17), is("v17"));
+    single.close();
+
+    // the default layout, with windows small enough to fill; records straddle their edges
+    f = new File(tmp.newFolder(), "windowed");
+    single = new ChiseledMap.Config<Integer, String>().mmapReads(true).mapWindow(4096).open(f, MUST_BE_NEW);
+    for (int i = 0; i < 5000; i++) {
+      single.set(i, "v" + i);
+    }
+    single.flush();
+    long before = single.mappedReads.sum();
+    for (int i = 0; i < 5000; i++) {
+      assertThat(single.get(i), is("v" + i));
+    }
+    long mapped = single.mappedReads.sum() - before;
+    // most come from a window; the ones across an edge, and the unfilled tail, from the channel
+    assertThat(mapped, Matchers.greaterThan(4000L));
+    assertThat(mapped, Matchers.lessThan(5000L));
+    single.close();
+  }
+
+  @Test
+  public void testReadsDoNotFlush() throws IOException, InterruptedException {
+    File f = new File(tmp.newFolder(), "buffered");
+    ChiseledMap<Integer, String> kv = new ChiseledMap<>(f, MUST_BE_NEW, null);
+    long empty = f.length();
+    for (int i = 0; i < 1000; i++) {
+      kv.set(i, "v" + i);
+      assertThat(kv.get(i), is("v" + i));
+      assertThat(kv.get(i / 2), is("v" + (i / 2)));
+    }
+    assertThat(f.length(), is(empty));
+    int cnt = 0;
+    for (Map.Entry<Integer, String> e : kv.entries()) {
+      assertThat(e.getValue(), is("v" + e.getKey()));
+      cnt++;
+    }
+    assertThat(cnt, is(1000));
+    assertThat(f.length(), is(empty));
+
+    kv.flushEvery(10, TimeUnit.MILLISECONDS);
+    for (int i = 0; i < 100 && f.length() == empty; i++) {
+      Thread.sleep(10);
+    }
+    assertThat(f.length(), Matchers.greaterThan(empty));
+    kv.close();
+
+    ChiseledMap<Integer, String> again = new ChiseledMap<>(f, MUST_EXIST, null);
+    assertThat(again.size(), is(1000));
+    assertThat(again.get(999), is("v999"));
+    again.close();
+  }
+
+  @Test
+  public void testGroupCommit() throws Exception {
+    File f = new File(tmp.newFolder(), "group");
+    ChiseledMap<Integer, String> kv = new ChiseledMap.Config<Integer, String>()
+      .durability(ChiseledMap.Durability.groupCommit(8, 5, TimeUnit.MILLISECONDS))
+      .open(f, MUST_BE_NEW);
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      int base = t * 1000;
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 200; i++) {
+          kv.set(base + i, "v" + (base + i));
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertThat(kv.size(), is(1600));
+    assertThat(kv.syncs(), Matchers.greaterThan(0L));
+    assertThat(kv.syncs(), Matchers.lessThan(1600L));
+    // a synced write is on disk without any flush
+    long before = f.length();
+    kv.merge(1, "x", (a, b) -> a + b);
+    assertThat(f.length(), Matchers.greaterThan(before));
+    kv.close();
+
+    ChiseledMap<Integer, String> sync = new ChiseledMap.Config<Integer, String>()
+      .durability(ChiseledMap.Durability.SYNC).open(f, MUST_EXIST);
+    assertThat(sync.get(1), is("v1x"));
+    assertThat(sync.get(7199), is("v7199"));
+    long syncs = sync.syncs();
+    sync.set(1, "again");
+    sync.remove(2);
+    assertThat(sync.syncs(), is(syncs + 2));
+    sync.close();
+
+    ChiseledMap<Integer, String> periodic = new ChiseledMap.Config<Integer, String>()
+      .durability(ChiseledMap.Durability.periodic(10)).open(f, MUST_EXIST);
+    assertThat(periodic.size(), is(1599));
+    periodic.set(3, "later");
+    for (int i = 0; i < 100 && periodic.syncs() == 0; i++) {
+      Thread.sleep(10);
+    }
+    assertThat(periodic.syncs(), Matchers.greaterThan(0L));
+    periodic.close();
+  }
+
+  @Test
+  public void testConcurrentWriters() throws Exception {
+    File f = new File(tmp.newFolder(), "writers");
+    ChiseledMap<Integer, Integer> kv = new ChiseledMap<>(f, MUST_BE_NEW, null);
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      int base = (t + 1) * 1000;
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 500; i++) {
+          kv.merge(i % 10, 1, Integer::sum);
+          kv.set(base + i, i);
+          kv.putIfAbsent(-1 - (i % 5), i);
+          kv.compute(-100, (k, v) -> v == null ? 1 : v + 1);
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    for (int i = 0; i < 10; i++) {
+      assertThat(kv.get(i), is(400));
+    }
+    assertThat(kv.get(-100), is(4000));
+    assertThat(kv.get(8499), is(499));
+    assertThat(kv.size(), is(10 + 4000 + 5 + 1));
+    assertThat(kv.replace(1, 400, 7), is(true));
+    assertThat(kv.replace(1, 400, 8), is(false));
+    assertThat(kv.remove(1, 8), is(false));
+    assertThat(kv.remove(1, 7), is(true));
+    assertThat(kv.remove(2), is(400));
+    kv.close();
+
+    ChiseledMap<Integer, Integer> again = new ChiseledMap<>(f, MUST_EXIST, null);
+    assertThat(again.size(), is(10 + 4000 + 5 + 1 - 2));
+    assertThat(again.get(-100), is(4000));
+    assertThat(again.get(1), Matchers.nullValue());
+    again.close();
+  }
+
+  @Test
+  public void testValueCache() throws IOException {
+    File f = new File(tmp.newFolder(), "cached");
+    ChiseledMap<Integer, String> kv = new ChiseledMap.Config<Integer, String>().cacheEntries(100).open(f, MUST_BE_NEW);
+    for (int i = 0; i < 1000; i++) {
+      kv.set(i, "v" + i);
+    }
+    for (int rep = 0; rep < 10; rep++) {
+      for (int i = 0; i < 50; i++) {
+        assertThat(kv.get(i), is("v" + i));
+      }
+    }
+    assertThat(kv.cacheMisses(), is(50L));
+    assertThat(kv.cacheHits(), is(450L));
+    // hits share the one decoded instance
+    assertThat(kv.get(7), Matchers.sameInstance(kv.get(7)));
+    // overwrites and removals are seen straight away
+    kv.set(3, "changed");
+    assertThat(kv.get(3), is("changed"));
+    kv.remove(4);
+    assertThat(kv.get(4), Matchers.nullValue());
+    // the entry bound holds
+    for (int i = 0; i < 1000; i++) {
+      kv.get(i);
+    }
+    long misses = kv.cacheMisses();
+    kv.get(0);
+    assertThat(kv.cacheMisses(), is(misses + 1));
+    kv.close();
+
+    ChiseledMap<Integer, String> bytes = new ChiseledMap.Config<Integer, String>().cacheBytes(1024).open(f, MUST_EXIST);
+    for (int i = 0; i < 100; i++) {
+      bytes.get(i % 2);
+    }
+    assertThat(bytes.cacheHits(), is(98L));
+    assertThat(bytes.get(3), is("changed"));
+    bytes.close();
+  }
+
+  @Test
+  public void testCompactIndex() throws IOException {
+    File f = new File(tmp.newFolder(), "compact-index");
+    ChiseledMap.KeyCodec<Integer> ints = new ChiseledMap.KeyCodec<Integer>() {
+      @Override
+      public byte[] encodeKey(Integer k) {
+        return ByteBuffer.allocate(4).putInt(0, k).array();
+      }
+
+      @Override
+      public Integer decodeKey(byte[] b) {
+        return ByteBuffer.wrap(b).getInt();
+      }
+    };
+    ChiseledMap.Config<Integer, String> config = new ChiseledMap.Config<Integer, String>().compactIndex(true)
+      .keyCodec(ints);
+    ChiseledMap<Integer, String> kv = config.open(f, MUST_BE_NEW);
+    TreeMap<Integer, String> ref = new TreeMap<>();
+    Random r = new Random(9);
+    for (int i = 0; i < 20000; i++) {
+      int k = r.nextInt(5000);
+      if (r.nextInt(4) == 0) {
+        assertThat(kv.remove(k), is(ref.remove(k)));
+      } else {
+        assertThat(kv.put(k, "v" + i), is(ref.put(k, "v" + i)));
+      }
+    }
+    assertThat(kv.size(), is(ref.size()));
+    assertThat(kv.containsKey(-1), is(false));
+    assertThat(new ArrayList<>(kv.entrySet()), is(new ArrayList<>(ref.entrySet())));
+    assertThat(kv.compact(), is(true));
+    assertThat(new ArrayList<>(kv.entrySet()), is(new ArrayList<>(ref.entrySet())));
+    kv.close();
+
+    ChiseledMap<Integer, String> again = config.open(f, MUST_EXIST);
+    assertThat(again.size(), is(ref.size()));
+    for (int k = 0; k < 5000; k++) {
+      assertThat(again.get(k), is(ref.get(k)));
+      assertThat(again.containsKey(k), is(ref.containsKey(k)));
+    }
+    again.clear();
+    assertThat(again.size(), is(0));
+    assertThat(again.entrySet().iterator().hasNext(), is(false));
+    again.close();
+
+    // no codec at all, so String keys take the compact default; merges run under the writes
+    File g = new File(tmp.newFolder(), "compact-default");
+    ChiseledMap<String, Integer> strs = new ChiseledMap.Config<String, Integer>().compactIndex(true).open(g, MUST_BE_NEW);
+    TreeMap<String, Integer> sref = new TreeMap<>();
+    for (int i = 0; i < 100000; i++) {
+      String k = "k" + r.nextInt(40000);
+      if (r.nextInt(4) == 0) {
+        assertThat(strs.remove(k), is(sref.remove(k)));
+      } else {
+        assertThat(strs.put(k, i), is(sref.put(k, i)));
+      }
+      String probe = "k" + r.nextInt(40000);
+      assertThat(strs.get(probe), is(sref.get(probe)));
+    }
+    assertThat(strs.size(), is(sref.size()));
+    assertThat(new ArrayList<>(strs.entrySet()), is(new ArrayList<>(sref.entrySet())));
+    strs.close();
+  }
+
+  @Test
+  public void testNavigableViews() throws IOException {
+    for (boolean compactIndex : new boolean[] { false, true }) {
+      File f = new File(tmp.newFolder(), "nav");
+      ChiseledMap<Integer, String> kv = new ChiseledMap.Config<Integer, String>().compactIndex(compactIndex)
+        .open(f, MUST_BE_NEW);
+      ConcurrentSkipListMap<Integer, String> ref = new ConcurrentSkipListMap<>();
+      for (int i = 0; i < 9000; i = i + 3) {
+        kv.put(i, "v" + i);
+        ref.put(i, "v" + i);
+      }
+      kv.remove(300);
+      ref.remove(300);
+      assertThat(new ArrayList<>(kv.subMap(100, 1000).entrySet()), is(new ArrayList<>(ref.subMap(100, 1000).entrySet())));
+      assertThat(new ArrayList<>(kv.headMap(99, true).entrySet()), is(new ArrayList<>(ref.headMap(99, true).entrySet())));
+      assertThat(new ArrayList<>(kv.tailMap(2900, false).entrySet()),
+        is(new ArrayList<>(ref.tailMap(2900, false).entrySet())));
+      assertThat(new ArrayList<>(kv.descendingMap().entrySet()), is(new ArrayList<>(ref.descendingMap().entrySet())));
+      assertThat(new ArrayList<>(kv.descendingMap().subMap(1000, 100).keySet()),
+        is(new ArrayList<>(ref.descendingMap().subMap(1000, 100).keySet())));
+      assertThat(kv.subMap(100, 1000).size(), is(ref.subMap(100, 1000).size()));
+      for (int k = -2; k < 3002; k = k + 7) {
+        assertThat(kv.ceilingEntry(k), is(ref.ceilingEntry(k)));
+        assertThat(kv.floorKey(k), is(ref.floorKey(k)));
+        assertThat(kv.higherKey(k), is(ref.higherKey(k)));
+        assertThat(kv.lowerEntry(k), is(ref.lowerEntry(k)));
+        assertThat(kv.descendingMap().ceilingKey(k), is(ref.descendingMap().ceilingKey(k)));
+        assertThat(kv.subMap(600, 900).floorKey(k), is(ref.subMap(600, 900).floorKey(k)));
+      }
+      assertThat(kv.firstKey(), is(0));
+      assertThat(kv.lastEntry(), is(ref.lastEntry()));
+      assertThat(kv.headMap(301).lastKey(), is(297));
+      assertThat(kv.navigableKeySet().descendingSet().first(), is(8997));
+      assertThat(kv.pollFirstEntry(), is(ref.pollFirstEntry()));
+      assertThat(kv.containsKey(0), is(false));
+      try {
+        kv.subMap(100, 200).put(500, "no");
+        fail();
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+      kv.subMap(100, 200).clear();
+      ref.subMap(100, 200).clear();
+      assertThat(new ArrayList<>(kv.keySet()), is(new ArrayList<>(ref.keySet())));
+      kv.close();
+    }
+  }
+
+  @Test
+  public void testWriteBatch() throws IOException {
+    File f = new File(tmp.newFolder(), "batch");
+    ChiseledMap<Integer, String> kv = new ChiseledMap<>(f, MUST_BE_NEW, null);
+    kv.set(1, "a");
+    kv.set(4, "gone");
+    ChiseledMap<Integer, String>.WriteBatch batch = kv.batch();
+    batch.set(1, "b").set(2, "c").unset(4);
+    assertThat(batch.size(), is(3));
+    batch.commit();
+    assertThat(batch.size(), is(0));
+    assertThat(kv.get(1), is("b"));
+    assertThat(kv.get(2), is("c"));
+    assertThat(kv.containsKey(4), is(false));
+    long dead = kv.deadBytes();
+    kv.close();
+
+    kv = new ChiseledMap<>(f, MUST_EXIST, null);
+    assertThat(kv.size(), is(2));
+    assertThat(kv.get(1), is("b"));
+    assertThat(kv.deadBytes(), is(dead));
+    // a torn batch at the tail is dropped whole
+    kv.batch().set(1, "torn").set(3, "torn").commit();
+    kv.close();
+    try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+      raf.setLength(raf.length() - 3);
+    }
+    kv = new ChiseledMap<>(f, MUST_EXIST, null);
+    assertThat(kv.get(1), is("b"));
+    assertThat(kv.containsKey(3), is(false));
+    kv.close();
+
+    // big batches, segments and hints
+    File dir = tmp.newFolder();
+    ChiseledMap.Config<Integer, String> config = new ChiseledMap.Config<Integer, String>().segmentSize(16 * 1024)
+      .hints(true);
+    ChiseledMap<Integer, String> seg = config.open(dir, MUST_BE_NEW);
+    for (int b = 0; b < 20; b++) {
+      ChiseledMap<Integer, String>.WriteBatch wb = seg.batch();
+      for (int i = 0; i < 100; i++) {
+        wb.set(i, "v" + b);
+      }
+      wb.commit();
+    }
+    seg.close();
+    seg = config.open(dir, MUST_EXIST);
+    assertThat(seg.size(), is(100));
+    assertThat(seg.get(99), is("v19"));
+    seg.close();
+  }
+
+  @Test
+  public void testParallelRecovery() throws IOException {
+    File f = new File(tmp.newFolder(), "recover");
+    ChiseledMap<Integer, String> kv = new ChiseledMap<>(f, MUST_BE_NEW, null);
+    for (int i = 0; i < 30000; i++) {
+      kv.set(i % 7000, "v" + i);
+      if (i % 11 == 0) {
+        kv.remove((i * 7) % 7000);
+      }
+    }
+    kv.batch().set(1, "batched").unset(2).commit();
+    kv.close();
+    // damage a byte near the end; both recoveries must stop at the same place
+    try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+      raf.seek(raf.length() - 500);
+      raf.write(raf.read() ^ 0xff);
+    }
+    File copy = new File(f.getPath() + ".copy");
+    Files.copy(f.toPath(), copy.toPath());
+
+    ChiseledMap<Integer, String> serial = new ChiseledMap<>(f, MUST_EXIST, null);
+    ChiseledMap<Integer, String> parallel = new ChiseledMap.Config<Integer, String>().recoveryThreads(4)
+      .open(copy, MUST_EXIST);
+    assertThat(parallel.size(), is(serial.size()));
+    assertThat(parallel.deadBytes(), is(serial.deadBytes()));
+    assertThat(parallel.entriesOnDisk(), is(serial.entriesOnDisk()));
+    assertThat(copy.length(), is(f.length()));
+    assertThat(new ArrayList<>(parallel.entrySet()), is(new ArrayList<>(serial.entrySet())));
+    serial.close();
+    parallel.close();
+
+    // and with batches and segments
+    File dir = tmp.newFolder();
+    ChiseledMap.Config<Integer, String> config = new ChiseledMap.Config<Integer, String>().segmentSize(64 * 1024);
+    ChiseledMap<Integer, String> seg = config.open(dir, MUST_BE_NEW);
+    for (int b = 0; b < 50; b++) {
+      ChiseledMap<Integer, String>.WriteBatch wb = seg.batch();
+      for (int i = 0; i < 50; i++) {
+        wb.set(i + b, "v" + b);
+      }
+      wb.commit();
+      seg.remove(b);
+    }
+    seg.close();
+    seg = config.recoveryThreads(3).open(dir, MUST_EXIST);
+    assertThat(seg.size(), is(49));
+    assertThat(seg.get(98), is("v49"));
+    assertThat(seg.get(50), is("v49"));
+    seg.close();
+
+    // batches that run across chunks, the last one torn; it goes, the ones before stay
+    f = new File(tmp.newFolder(), "batches");
+    kv = new ChiseledMap<>(f, MUST_BE_NEW, null);
+    for (int b = 0; b < 6; b++) {
+      ChiseledMap<Integer, String>.WriteBatch wb = kv.batch();
+      for (int i = 0; i < 1500; i++) {
+        wb.set(i, "b" + b);
+      }
+      wb.commit();
+      kv.set(-1 - b, "after" + b);
+    }
+    kv.close();
+    try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+      raf.setLength(raf.length() - 5000);
+    }
+    copy = new File(f.getPath() + ".copy");
+    Files.copy(f.toPath(), copy.toPath());
+    serial = new ChiseledMap<>(f, MUST_EXIST, null);
+    parallel = new ChiseledMap.Config<Integer, String>().recoveryThreads(4).open(copy, MUST_EXIST);
+    assertThat(serial.get(0), is("b4"));
+    assertThat(serial.get(-5), is("after4"));
+    assertThat(serial.get(-6), Matchers.nullValue());
+    assertThat(new ArrayList<>(parallel.entrySet()), is(new ArrayList<>(serial.entrySet())));
+    assertThat(copy.length(), is(f.length()));
+    assertThat(parallel.entriesOnDisk(), is(serial.entriesOnDisk()));
+    serial.close();
+    parallel.close();
+  }
+
+  @Test
+  public void testCodecs() throws IOException {
+    // built ins round trip, and stay self delimiting back to back
+    ChiseledMap.Codec<List<Object>> comp = ChiseledMap.Codec.composite(ChiseledMap.Codec.STRING,
+      ChiseledMap.Codec.INT, ChiseledMap.Codec.LONG, ChiseledMap.Codec.BYTES);
+    List<Object> key = Arrays.asList("h\u00e9llo \u20ac \ud83d\ude00", 7, -3L, new byte[] { 1, 2 });
+    ByteBuffer b = ByteBuffer.allocate(comp.size(key) + ChiseledMap.Codec.STRING.size("x"));
+    comp.encode(key, b);
+    ChiseledMap.Codec.STRING.encode("x", b);
+    assertThat(b.remaining(), is(0));
+    b.flip();
+    List<Object> back = comp.decode(b);
+    assertThat(back.get(0), is(key.get(0)));
+    assertThat(back.get(2), is(-3L));
+    assertThat((byte[]) back.get(3), is(new byte[] { 1, 2 }));
+    assertThat(ChiseledMap.Codec.STRING.decode(b), is("x"));
+
+    // values are never decoded on restart
+    AtomicLong decodes = new AtomicLong();
+    ChiseledMap.Codec<Long> counting = new ChiseledMap.Codec<Long>() {
+      @Override
+      public int size(Long l) {
+        return Long.BYTES;
+      }
+
+      @Override
+      public void encode(Long l, ByteBuffer dest) {
+        dest.putLong(l);
+      }
+
+      @Override
+      public Long decode(ByteBuffer src) {
+        decodes.incrementAndGet();
+        return src.getLong();
+      }
+    };
+    File f = tmp.newFolder();
+    ChiseledMap.Config<String, Long> config = new ChiseledMap.Config<String, Long>().codecs(ChiseledMap.Codec.STRING,
+      counting).segmentSize(64 * 1024);
+    ChiseledMap<String, Long> kv = config.open(f, MUST_BE_NEW);
+    for (long i = 0; i < 5000; i++) {
+      kv.set("k" + (i % 1000), i);
+      if (i % 13 == 0) {
+        kv.remove("k" + (i % 997));
+      }
+    }
+    assertThat(kv.ioGetSet("k1", -1L), is(4001L));
+    assertThat(kv.ioUnset("k1"), is(-1L));
+    kv.batch().set("b", 1L).unset("k2").commit();
+    TreeMap<String, Long> expect = new TreeMap<>(kv);
+    kv.close();
+    for (int threads : new int[] { 0, 4 }) {
+      decodes.set(0);
+      kv = config.recoveryThreads(threads).mmapReads(threads > 0).open(f, MUST_EXIST);
+      assertThat(decodes.get(), is(0L));
+      assertThat(kv, is(expect));
+      kv.close();
+    }
+
+    // composite keys, with their order
+    File cf = new File(tmp.newFolder(), "composite");
+    ChiseledMap<List<Object>, String> ck = new ChiseledMap.Config<List<Object>, String>().codecs(
+      ChiseledMap.Codec.composite(ChiseledMap.Codec.STRING, ChiseledMap.Codec.INT), ChiseledMap.Codec.STRING)
+      .comparator(ChiseledMap.Codec.compositeOrder()).open(cf, MUST_BE_NEW);
+    for (int i = 0; i < 100; i++) {
+      ck.set(Arrays.asList("g" + (i % 3), i), "v" + i);
+    }
+    assertThat(ck.firstKey(), is(Arrays.<Object>asList("g0", 0)));
+    assertThat(ck.subMap(Arrays.asList("g1", 0), Arrays.asList("g1", 10)).size(), is(3));
+    ck.close();
+    ck = new ChiseledMap.Config<List<Object>, String>().codecs(
+      ChiseledMap.Codec.composite(ChiseledMap.Codec.STRING, ChiseledMap.Codec.INT), ChiseledMap.Codec.STRING)
+      .comparator(ChiseledMap.Codec.compositeOrder()).hints(true).open(cf, MUST_EXIST);
+    assertThat(ck.size(), is(100));
+    assertThat(ck.get(Arrays.asList("g2", 98)), is("v98"));
+    ck.close();
+  }
+
+  @Test
+  public void testCompression() throws IOException {
+    String doc = "{\"name\":\"widget-%d\",\"color\":\"blue\",\"tags\":[\"a\",\"b\",\"c\"],\"price\":%d,"
+                 + "\"description\":\"a perfectly ordinary widget, much like all the other widgets\"}";
+    File plainFile = new File(tmp.newFolder(), "plain");
+    File zipFile = new File(tmp.newFolder(), "zip");
+    ChiseledMap<Integer, String> plain = new ChiseledMap<>(plainFile, MUST_BE_NEW, null);
+    ChiseledMap.Config<Integer, String> config = new ChiseledMap.Config<Integer, String>().compression(6);
+    ChiseledMap<Integer, String> zip = config.open(zipFile, MUST_BE_NEW);
+    for (int i = 0; i < 2000; i++) {
+      String v = String.format(doc, i, i * 3) + String.format(doc, i + 1, i) + String.format(doc, i + 2, i);
+      plain.set(i, v);
+      zip.set(i, v);
+    }
+    zip.remove(7);
+    zip.set(8, "short");
+    assertThat(zip.compressionRatio(), Matchers.greaterThan(2.0d));
+    assertThat(zip.compressionTime(TimeUnit.NANOSECONDS), Matchers.greaterThan(0L));
+    assertThat(plain.compressionRatio(), is(1.0d));
+    // read back while still in the write buffer, then from the file
+    assertThat(zip.get(1999), is(plain.get(1999)));
+    zip.flush();
+    plain.flush();
+    assertThat(zip.bytesOnDisk() * 2, Matchers.lessThan(plain.bytesOnDisk()));
+    assertThat(zip.get(5), is(plain.get(5)));
+    assertThat(zip.decompressionTime(TimeUnit.NANOSECONDS), Matchers.greaterThan(0L));
+    TreeMap<Integer, String> expect = new TreeMap<>(zip);
+    plain.close();
+    zip.close();
+    for (int threads : new int[] { 0, 4 }) {
+      // the records say they are compressed; the config needn't
+      zip = new ChiseledMap.Config<Integer, String>().recoveryThreads(threads).mmapReads(threads > 0).open(zipFile,
+        MUST_EXIST);
+      assertThat(zip, is(expect));
+      zip.close();
+    }
+
+    // small records share a dictionary instead of a block
+    byte[] dict = String.format(doc, 0, 0).getBytes(StandardCharsets.UTF_8);
+    long[] sizes = new long[2];
+    for (int i = 0; i < sizes.length; i++) {
+      ChiseledMap.Config<Integer, String> c = new ChiseledMap.Config<Integer, String>().codecs(ChiseledMap.Codec.INT,
+        ChiseledMap.Codec.STRING).compression(9).compressionDictionary(i == 0 ? null : dict);
+      File f = new File(tmp.newFolder(), "dict");
+      ChiseledMap<Integer, String> kv = c.open(f, MUST_BE_NEW);
+      for (int j = 0; j < 500; j++) {
+        kv.set(j, String.format(doc, j, j));
+      }
+      kv.close();
+      sizes[i] = f.length();
+      kv = c.open(f, MUST_EXIST);
+      assertThat(kv.size(), is(500));
+      assertThat(kv.get(42), is(String.format(doc, 42, 42)));
+      kv.close();
+    }
+    assertThat(sizes[1] * 2, Matchers.lessThan(sizes[0]));
+  }
+
+  @Test
+  public void testChecksums() throws IOException {
+    // the standard check value for CRC32C, masked
+    File f = new File(tmp.newFolder(), "crc32c");
+    ChiseledMap<String, String> kv = new ChiseledMap.Config<String, String>().crc32c(true)
+      .encoder((k, v) -> ByteBuffer.wrap("123456789".getBytes(StandardCharsets.US_ASCII)))
+      .open(f, MUST_BE_NEW);
+    kv.set("k", "v");
+    kv.close();
+    byte[] raw = Files.readAllBytes(f.toPath());
+    assertThat(Arrays.copyOf(raw, ChiseledMap.HDR.length), is(ChiseledMap.HDR_CRC32C));
+    assertThat(ByteBuffer.wrap(raw).getInt(ChiseledMap.HDR.length + 4 + 9), is(0xe3069283 & ChiseledMap.DIGEST_MASK));
+
+    // the header decides, whatever the config says
+    File dir = tmp.newFolder();
+    ChiseledMap.Config<Integer, String> config = new ChiseledMap.Config<Integer, String>().codecs(ChiseledMap.Codec.INT,
+      ChiseledMap.Codec.STRING).segmentSize(16 * 1024);
+    ChiseledMap<Integer, String> seg = config.crc32c(true).open(dir, MUST_BE_NEW);
+    for (int i = 0; i < 3000; i++) {
+      seg.set(i % 500, "value-" + i);
+    }
+    seg.compact();
+    seg.close();
+    for (int threads : new int[] { 0, 4 }) {
+      seg = config.crc32c(false).recoveryThreads(threads).open(dir, MUST_EXIST);
+      assertThat(seg.size(), is(500));
+      assertThat(seg.get(499), is("value-2999"));
+      seg.close();
+    }
+
+    // damage is caught on a get, when asked
+    for (boolean mmap : new boolean[] { false, true }) {
+      File vf = new File(tmp.newFolder(), "verify");
+      ChiseledMap<Integer, String> v = new ChiseledMap.Config<Integer, String>().codecs(ChiseledMap.Codec.INT,
+        ChiseledMap.Codec.STRING).verifyOnRead(true).mmapReads(mmap).open(vf, MUST_BE_NEW);
+      for (int i = 0; i < 100; i++) {
+        v.set(i, "value-" + i + "-payload");
+      }
+      v.flush();
+      byte[] b = Files.readAllBytes(vf.toPath());
+      int at = new String(b, StandardCharsets.ISO_8859_1).indexOf("value-42-");
+      try (RandomAccessFile raf = new RandomAccessFile(vf, "rw")) {
+        raf.seek(at + 3);
+        raf.write('X');
+      }
+      assertThat(v.get(41), is("value-41-payload"));
+      try {
+        v.get(42);
+        fail();
+      } catch (ChiseledMap.RuntimeIOException e) {
+        // expected
+      }
+      v.close();
+    }
+  }
+
+  @Test
+  public void testMetrics() throws IOException {
+    ChiseledMap<Integer, String> kv = new ChiseledMap.Config<Integer, String>().durability(
+      ChiseledMap.Durability.SYNC).open(new File(tmp.newFolder(), "metrics"), MUST_BE_NEW);
+    for (int i = 0; i < 200; i++) {
+      kv.set(i % 50, "value-" + i);
+    }
+    for (int i = 0; i < 100; i++) {
+      assertThat(kv.get(i), is(i < 50 ? "value-" + (150 + i) : null));
+    }
+    kv.remove(3);
+    kv.put(4, "four");
+    ChiseledMap.Metrics m = kv.metrics();
+    assertThat(m.sets().count(), is(201L));
+    assertThat(m.gets().count(), is(100L));
+    assertThat(m.removes().count(), is(1L));
+    assertThat(m.encodes().count(), is(202L));
+    assertThat(m.fsyncs().count(), is(202L));
+    assertThat(m.fsyncs().count(), is(kv.syncs()));
+    assertThat(m.flushes().count(), Matchers.greaterThan(0L));
+    assertThat(m.indexSize(), is(49L));
+    assertThat(m.entriesOnDisk(), is(202L));
+    assertThat(m.bytesAppended(), is(m.logBytes()));
+    assertThat(m.bytesRead(), Matchers.greaterThan(0L));
+    assertThat(m.deadRatio(), Matchers.greaterThan(0.5d));
+    assertThat(m.gets().percentile(0.5d), Matchers.lessThanOrEqualTo(m.gets().max()));
+    assertThat(m.gets().percentile(1.0d), is(m.gets().max()));
+    long buckets = 0;
+    for (int i = 0; i <= 64; i++) {
+      buckets = buckets + m.sets().bucket(i);
+    }
+    assertThat(buckets, is(201L));
+    // a snapshot doesn't move
+    kv.set(1, "again");
+    assertThat(m.sets().count(), is(201L));
+    assertThat(kv.metrics().sets().count(), is(202L));
+    kv.close();
+  }
+
+  @Test
+  public void testBackup() throws Exception {
+    for (long segSize : new long[] { 0, 32 * 1024 }) {
+      File f = new File(tmp.newFolder(), "live");
+      ChiseledMap.Config<Integer, String> config = new ChiseledMap.Config<Integer, String>().segmentSize(segSize);
+      ChiseledMap<Integer, String> kv = config.open(f, MUST_BE_NEW);
+      for (int i = 0; i < 5000; i++) {
+        kv.set(i % 1000, "first-" + i);
+      }
+      for (int i = 0; i < 100; i++) {
+        kv.remove(i * 3);
+      }
+      TreeMap<Integer, String> then = new TreeMap<>(kv);
+
+      // writes carry on while the copy runs; the backup is as of the call
+      File dest = new File(tmp.newFolder(), "backup");
+      Future<Long> full = kv.backup(dest);
+      for (int i = 0; i < 2000; i++) {
+        kv.set(i % 1200, "second-" + i);
+      }
+      long pos = full.get();
+      ChiseledMap<Integer, String> restored = new ChiseledMap<>(dest, MUST_EXIST, null);
+      assertThat(restored, is(then));
+      assertThat(restored.deadBytes(), is(0L));
+      restored.close();
+
+      // then just what was written since, removals and batches too
+      kv.remove(1);
+      kv.batch().set(5000, "batched").unset(2).commit();
+      long next = kv.backupSince(dest, pos).get();
+      restored = new ChiseledMap<>(dest, MUST_EXIST, null);
+      assertThat(restored, is(new TreeMap<>(kv)));
+      restored.close();
+      assertThat(kv.backupSince(dest, next).get(), is(next));
+
+      // compaction rewrites the file, so the next one must be full
+      if (segSize == 0) {
+        assertThat(kv.compact(), is(true));
+        try {
+          kv.backupSince(dest, next);
+          fail();
+        } catch (IOException e) {
+          // expected
+        }
+      }
+      kv.close();
+    }
+  }
+
+  @Test
+  public void testSecondaryIndex() throws IOException {
+    File f = new File(tmp.newFolder(), "people");
+    ChiseledMap.Config<Integer, String> config = new ChiseledMap.Config<Integer, String>().codecs(ChiseledMap.Codec.INT,
+      ChiseledMap.Codec.STRING).secondaryIndex("city", v -> v.split(",")[1]).secondaryIndex("len", String::length);
+    ChiseledMap<Integer, String> kv = config.open(f, MUST_BE_NEW);
+    String[] cities = { "paris", "oslo", "lima" };
+    for (int i = 0; i < 300; i++) {
+      kv.set(i, "p" + i + "," + cities[i % 3]);
+    }
+    assertThat(kv.lookupKeys("city", "oslo").size(), is(100));
+    assertThat(kv.lookupKeys("city", "rome").isEmpty(), is(true));
+    // moves, removals, batches and CAS writes all keep it in step
+    kv.set(1, "p1,rome");
+    kv.remove(4);
+    kv.batch().set(7, "p7,rome").unset(10).commit();
+    assertThat(kv.replace(13, "p13,oslo", "p13,lima"), is(true));
+    kv.putIfAbsent(1000, "p1000,oslo");
+    NavigableMap<Integer, String> rome = kv.lookup("city", "rome");
+    assertThat(rome.keySet(), is(new TreeSet<>(Arrays.asList(1, 7))));
+    assertThat(rome.get(7), is("p7,rome"));
+    assertThat(kv.lookupKeys("city", "oslo").size(), is(96));
+    assertThat(kv.lookupKeys("len", 7).first(), is(1));
+    // an attribute that throws fails the write before anything is written
+    try {
+      kv.set(2, "p2");
+      fail();
+    } catch (ArrayIndexOutOfBoundsException e) {
+      // expected
+    }
+    try {
+      kv.batch().set(5, "p5");
+      fail();
+    } catch (ArrayIndexOutOfBoundsException e) {
+      // expected
+    }
+    assertThat(kv.get(2), is("p2,lima"));
+    assertThat(kv.lookupKeys("city", "lima").contains(2), is(true));
+    TreeMap<Integer, String> oslo = new TreeMap<>();
+    kv.forEach((k, v) -> {
+      if (v.endsWith(",oslo")) {
+        oslo.put(k, v);
+      }
+    });
+    assertThat(kv.lookup("city", "oslo"), is(oslo));
+    kv.close();
+
+    // rebuilt on open
+    kv = config.open(f, MUST_EXIST);
+    assertThat(kv.lookup("city", "oslo"), is(oslo));
+    assertThat(kv.lookupKeys("city", "rome").size(), is(2));
+    try {
+      kv.lookup("nope", "x");
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    kv.close();
+  }
+
+  @Test
+  public void testTimeToLive() throws Exception {
+    for (long segSize : new long[] { 0, 16 * 1024 }) {
+      File f = new File(tmp.newFolder(), "cache");
+      AtomicLong now = new AtomicLong(System.currentTimeMillis());
+      ChiseledMap.Config<Integer, String> config = new ChiseledMap.Config<Integer, String>().segmentSize(segSize)
+        .hints(segSize > 0).compression(6).clock(now::get);
+      ChiseledMap<Integer, String> kv = config.open(f, MUST_BE_NEW);
+      String pad = "0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnopqrstuvwxyz";
+      for (int i = 0; i < 200; i++) {
+        kv.set(i, "keep" + i + pad);
+      }
+      // an expiring write hides the older, immortal one
+      for (int i = 0; i < 100; i++) {
+        kv.set(i, "short" + i + pad, 200, TimeUnit.MILLISECONDS);
+      }
+      kv.batch().set(500, "long", 1, TimeUnit.HOURS).set(501, "brief", 200, TimeUnit.MILLISECONDS).commit();
+      assertThat(kv.get(5), is("short5" + pad));
+      assertThat(kv.get(501), is("brief"));
+      now.addAndGet(300);
+      assertThat(kv.get(5), Matchers.nullValue());
+      assertThat(kv.containsKey(501), is(false));
+      assertThat(kv.get(150), is("keep150" + pad));
+      assertThat(kv.get(500), is("long"));
+      int n = 0;
+      for (Map.Entry<Integer, String> e : kv.entries()) {
+        assertThat(e.getValue().startsWith("short") || e.getValue().equals("brief"), is(false));
+        n++;
+      }
+      assertThat(n, is(101));
+      assertThat(kv.firstKey(), is(100));
+      // a touch drops it, and the write goes through
+      assertThat(kv.putIfAbsent(5, "again"), Matchers.nullValue());
+      double before = kv.deadRatio();
+      assertThat(kv.reap(), is(100));
+      assertThat(kv.size(), is(102));
+      assertThat(kv.deadRatio() > before, is(true));
+      assertThat(kv.metrics().expired(), is(101L));
+      kv.close();
+
+      // expired records aren't indexed on restart, nor do older versions come back
+      kv = config.open(f, MUST_EXIST);
+      assertThat(kv.size(), is(102));
+      assertThat(kv.get(6), Matchers.nullValue());
+      assertThat(kv.get(5), is("again"));
+      assertThat(kv.get(500), is("long"));
+      kv.set(7, "seven", 200, TimeUnit.MILLISECONDS);
+      kv.close();
+
+      // expiry survives a restart, and the reaper runs in the background
+      kv = config.open(f, MUST_EXIST);
+      assertThat(kv.get(7), is("seven"));
+      now.addAndGet(300);
+      kv.reapEvery(50, TimeUnit.MILLISECONDS);
+      long until = System.currentTimeMillis() + 5000;
+      while (kv.size() > 102 && System.currentTimeMillis() < until) {
+        Thread.sleep(20);
+      }
+      assertThat(kv.size(), is(102));
+      assertThat(kv.get(7), Matchers.nullValue());
+      kv.close();
+    }
+  }
+
+  @Test
+  public void testReadView() throws Exception {
+    for (long segSize : new long[] { 0, 16 * 1024 }) {
+      File f = new File(tmp.newFolder(), "views");
+      ChiseledMap<Integer, String> kv = new ChiseledMap.Config<Integer, String>().segmentSize(segSize)
+        .compactIndex(segSize > 0).open(f, MUST_BE_NEW);
+      for (int i = 0; i < 1000; i++) {
+        kv.set(i, "v0-" + i);
+      }
+      kv.set(5000, "brief", 1, TimeUnit.HOURS);
+      ChiseledMap<Integer, String>.ReadView view = kv.readView();
+      // writers carry on underneath a scan
+      AtomicBoolean done = new AtomicBoolean(false);
+      Thread writer = new Thread(() -> {
+        for (int round = 1; round <= 3; round++) {
+          for (int i = 0; i < 1000; i++) {
+            if (i % 10 == 0) {
+              kv.remove(i);
+            } else {
+              kv.set(i, "v" + round + "-" + i);
+            }
+            kv.set(1000 + i, "new");
+          }
+        }
+        kv.remove(5000);
+        done.set(true);
+      });
+      writer.start();
+      int scans = 0;
+      do {
+        int n = 0;
+        for (Map.Entry<Integer, String> e : view.entries()) {
+          if (e.getKey() == 5000) {
+            assertThat(e.getValue(), is("brief"));
+          } else {
+            assertThat(e.getValue(), is("v0-" + e.getKey()));
+          }
+          n++;
+        }
+        assertThat(n, is(1001));
+        scans++;
+      } while (!done.get() || scans < 2);
+      writer.join();
+      assertThat(kv.get(1), is("v3-1"));
+      assertThat(view.get(1), is("v0-1"));
+      assertThat(view.get(10), is("v0-10"));
+      assertThat(kv.containsKey(10), is(false));
+      assertThat(view.containsKey(1500), is(false));
+      assertThat(view.get(5000), is("brief"));
+      int n = 0;
+      for (Map.Entry<Integer, String> e : view.entries(100, 200)) {
+        assertThat(e.getValue(), is("v0-" + e.getKey()));
+        n++;
+      }
+      assertThat(n, is(100));
+
+      // compaction is refused while a view is open
+      assertThat(kv.pinned(), is(1));
+      assertThat(kv.compact(), is(false));
+      ChiseledMap<Integer, String>.ReadView later = kv.readView();
+      assertThat(kv.pinned(), is(2));
+      assertThat(later.position() > view.position(), is(true));
+      assertThat(later.get(1), is("v3-1"));
+      view.close();
+      assertThat(kv.compact(), is(false));
+      later.close();
+      assertThat(kv.pinned(), is(0));
+      assertThat(kv.compact(), is(true));
+      assertThat(kv.get(1), is("v3-1"));
+      try {
+        view.get(1);
+        fail();
+      } catch (IllegalStateException e) {
+        // expected
+      }
+
+      // the background compactor counts the runs an open view turns away
+      ChiseledMap<Integer, String>.ReadView held = kv.readView();
+      kv.compactWhen(0.0d, 5, TimeUnit.MILLISECONDS);
+      long deadline = System.currentTimeMillis() + 10000;
+      while (kv.compactionsSkipped() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+      assertThat(kv.compactionsSkipped() > 0, is(true));
+      held.close();
+      kv.close();
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testHintsSkipReplay() throws IOException {
+    AtomicLong decodes = new AtomicLong();
+    ChiseledMap.Decoder<Integer, String> counting = (b) -> {
+      decodes.incrementAndGet();
+      return (Map.Entry<Integer, String>) ChiseledMap.DECODE_JAVA_SER.decode(b);
+    };
+    for (long segSize : new long[] { 0, 32 * 1024 }) {
+      File f = (segSize > 0) ? tmp.newFolder() : tmp.newFile();
+      ChiseledMap.Config<Integer, String>
+        config =
+        new ChiseledMap.Config<Integer, String>().segmentSize(segSize).decoder(counting).hints(true);
+      ChiseledMap<Integer, String> kv = config.open(f, DONT_CARE);
+      for (int i = 0; i < 5000; i++) {
+        kv.set(i % 1000, "v" + i);
+      }
+      for (int i = 0; i < 100; i++) {
+        kv.remove(i);
+      }
+      kv.close();
+
+      // reopen: no records decoded, hints only
+      decodes.set(0);
+      kv = config.open(f, MUST_EXIST);
+      assertThat(decodes.get(), is(0L));
+      assertThat(kv.size(), is(900));
+      assertThat(kv.get(5), Matchers.nullValue());
+      assertThat(kv.get(500), is("v4500"));
+      kv.set(5, "back");
+      kv.set(500, "changed");
+      kv.flush();
+
+      // open again without closing; only the tail after the hint is scanned
+      decodes.set(0);
+      ChiseledMap<Integer, String> tail = config.open(f, MUST_EXIST);
+      assertThat(decodes.get(), Matchers.lessThan(10L));
+      assertThat(tail.size(), is(901));
+      assertThat(tail.get(5), is("back"));
+      assertThat(tail.get(500), is("changed"));
+      tail.close();
+      kv.close();
+    }
+
+    // a damaged hint means a full scan, same answer
+    File f = tmp.newFile();
+    ChiseledMap.Config<Integer, String> config = new ChiseledMap.Config<Integer, String>().decoder(counting).hints(true);
+    ChiseledMap<Integer, String> kv = config.open(f, DONT_CARE);
+    for (int i = 0; i < 1000; i++) {
+      kv.set(i, "v" + i);
+    }
+    kv.close();
+    File hint = new File(f.getPath() + ".hint");
+    try (RandomAccessFile raf = new RandomAccessFile(hint, "rw")) {
+      raf.seek(raf.length() / 2);
+      raf.write(~raf.read());
+    }
+    decodes.set(0);
+    kv = config.open(f, MUST_EXIST);
+    assertThat(decodes.get(), is(1000L));
+    assertThat(kv.size(), is(1000));
+    assertThat(kv.get(999), is("v999"));
+    kv.close();
+  }
 }
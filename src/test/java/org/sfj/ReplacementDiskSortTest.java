@@ -37,9 +37,16 @@ import java.io.IOException;
 import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 import static java.nio.file.StandardOpenOption.APPEND;
 import static java.nio.file.StandardOpenOption.CREATE_NEW;
@@ -94,15 +101,22 @@ public class ReplacementDiskSortTest {
           try {
             return new IntElement(dis.readInt());
           } catch (IOException e) {
-            try {
-              dis.close();
-            } catch (IOException ex) {
-            }
-            dis = null;
+            close();
           }
         }
         return null;
       }
+
+      @Override
+      public void close() {
+        if (dis != null) {
+          try {
+            dis.close();
+          } catch (IOException ex) {
+          }
+          dis = null;
+        }
+      }
     };
   }
 
@@ -121,6 +135,153 @@ public class ReplacementDiskSortTest {
     runs.forEach(f -> verifyOrder(f, (ff) -> makeIter(ff), Comparator.comparing(IntElement::getData)));
   }
 
+  @Test
+  public void testParallelRuns() throws IOException {
+    File folder = tmp.newFolder();
+    Random r = new Random(0);
+    File src = genIntFile(new File(folder, "source"), r, 100000);
+    File dest = new File(folder, "dest");
+    File work = new File(folder, "work");
+    work.mkdirs();
+    ReplacementDiskSort<IntElement> kd = new ReplacementDiskSort<>(ReplacementDiskSortTest::makeIter,
+      ReplacementDiskSortTest::makeAppender, Comparator.comparing(IntElement::getData), true).setRunThreads(4)
+      .setVerbose(null);
+    kd.run(src, 4000, 10, dest, work);
+    verifyOrder(dest, ReplacementDiskSortTest::makeIter, Comparator.comparing(IntElement::getData));
+    assertThat(dest.length(), Matchers.is(100000L * Integer.BYTES));
+    // a pass 0 per worker, which account for every element
+    List<ReplacementDiskSort.PassInfo> runs = kd.getPassInfo()
+      .stream()
+      .filter(pi -> pi.getPass() == 0)
+      .collect(Collectors.toList());
+    assertThat(runs.size(), Matchers.is(4));
+    assertThat(runs.stream().flatMap(pi -> pi.getRunCounts().stream()).mapToLong(Long::longValue).sum(),
+      Matchers.is(100000L));
+  }
+
+  @Test
+  public void testConcurrentMerges() throws IOException {
+    for (int segments : new int[] { 1, 4 }) {
+      File folder = tmp.newFolder();
+      Random r = new Random(0);
+      File src = genIntFile(new File(folder, "source"), r, 200000);
+      File dest = new File(folder, "dest");
+      File work = new File(folder, "work");
+      work.mkdirs();
+      // every iterator is done with by the end, whether or not it got to null
+      AtomicInteger open = new AtomicInteger();
+      ReplacementDiskSort.IterMaker<IntElement> counted = f -> {
+        ReplacementDiskSort.ExternalIterator<IntElement> iter = makeIter(f);
+        open.incrementAndGet();
+        return new ReplacementDiskSort.ExternalIterator<IntElement>() {
+          boolean closed = false;
+
+          @Override
+          public IntElement next() throws IOException {
+            IntElement ret = iter.next();
+            if (ret == null) {
+              close();
+            }
+            return ret;
+          }
+
+          @Override
+          public void close() throws IOException {
+            if (!closed) {
+              closed = true;
+              open.decrementAndGet();
+              iter.close();
+            }
+          }
+        };
+      };
+      // appenders open at once, as each one opens; the last few are the final merge's segments
+      AtomicInteger appending = new AtomicInteger();
+      List<Integer> concurrency = Collections.synchronizedList(new ArrayList<>());
+      ReplacementDiskSort.AppenderMaker<IntElement> tracked = f -> {
+        ReplacementDiskSort.ExternalAppender<IntElement> app = makeAppender(f);
+        concurrency.add(appending.incrementAndGet());
+        return new ReplacementDiskSort.ExternalAppender<IntElement>() {
+          @Override
+          public void append(IntElement elem) throws IOException {
+            app.append(elem);
+          }
+
+          @Override
+          public void close() {
+            app.close();
+            appending.decrementAndGet();
+          }
+        };
+      };
+      ReplacementDiskSort<IntElement> kd = new ReplacementDiskSort<>(counted, tracked,
+        Comparator.comparing(IntElement::getData), true).setMergeThreads(2)
+        .setFinalMergeSegments(segments)
+        .setVerbose(null);
+      kd.run(src, 1000, 10, dest, work);
+      assertThat(open.get(), Matchers.is(0));
+      int intermediate = concurrency.size() - (segments > 1 ? segments : 0);
+      assertThat(concurrency.subList(0, intermediate).stream().mapToInt(Integer::intValue).max().getAsInt(),
+        Matchers.lessThanOrEqualTo(2));
+      verifyOrder(dest, ReplacementDiskSortTest::makeIter, Comparator.comparing(IntElement::getData));
+      assertThat(dest.length(), Matchers.is(200000L * Integer.BYTES));
+      List<ReplacementDiskSort.PassInfo> passes = kd.getPassInfo();
+      assertThat(passes.get(passes.size() - 1).getRunCounts().get(0), Matchers.is(200000L));
+      if (segments > 1) {
+        // the last pass concatenates the segments
+        assertThat(passes.get(passes.size() - 1).getSrcFiles().size(), Matchers.is(segments));
+      }
+      assertThat(work.list().length, Matchers.is(0));
+    }
+  }
+
+  @Test
+  public void testMergeStrategies() throws IOException {
+    // merge the same sorted runs each way; the loser tree should do about half the comparisons
+    File folder = tmp.newFolder();
+    Random r = new Random(0);
+    for (int k : new int[] { 2, 3, 64 }) {
+      List<File> runs = new ArrayList<>();
+      for (int i = 0; i < k; i++) {
+        File run = new File(folder, "run-" + k + "-" + i);
+        ReplacementDiskSort.ExternalAppender<IntElement> app = makeAppender(run);
+        r.ints(200000 / k, 0, 1000000).sorted().forEach(v -> {
+          try {
+            app.append(new IntElement(v));
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        });
+        app.close();
+        runs.add(run);
+      }
+      long[] compares = new long[2];
+      for (ReplacementDiskSort.MergeStrategy strategy : ReplacementDiskSort.MergeStrategy.values()) {
+        AtomicLong calls = new AtomicLong();
+        Comparator<IntElement> counting = (a, b) -> {
+          calls.incrementAndGet();
+          return Integer.compare(a.getData(), b.getData());
+        };
+        ReplacementDiskSort<IntElement> kd = new ReplacementDiskSort<>(ReplacementDiskSortTest::makeIter,
+          ReplacementDiskSortTest::makeAppender, counting, false).setMergeStrategy(strategy).setVerbose(null);
+        kd.workDirectory = folder;
+        File dest = new File(folder, "merged-" + k + "-" + strategy);
+        long t0 = System.nanoTime();
+        kd.mergePass(1, runs, dest);
+        long took = System.nanoTime() - t0;
+        System.out.println(
+          String.format("%d-way %s: %d compares, %dms", k, strategy, calls.get(), TimeUnit.NANOSECONDS.toMillis(took)));
+        compares[strategy.ordinal()] = calls.get();
+        verifyOrder(dest, ReplacementDiskSortTest::makeIter, Comparator.comparing(IntElement::getData));
+        assertThat(dest.length(), Matchers.is((long) (200000 / k) * k * Integer.BYTES));
+      }
+      // a two element heap also gets by on one comparison; it is the overhead that goes
+      long queued = compares[ReplacementDiskSort.MergeStrategy.PRIORITY_QUEUE.ordinal()];
+      assertThat(compares[ReplacementDiskSort.MergeStrategy.LOSER_TREE.ordinal()],
+        (k == 2) ? Matchers.lessThanOrEqualTo(queued) : Matchers.lessThan(queued));
+    }
+  }
+
   private static <E extends ReplacementDiskSort.Element> void verifyOrder(File f,
                                                                           ReplacementDiskSort.IterMaker<E> iterMaker,
                                                                           Comparator<E> comp) {
@@ -290,6 +451,157 @@ public class ReplacementDiskSortTest {
     verifyOrder(dest, (ff) -> iterMaker.make(ff), Comparator.comparing(StrElement::getData));
   }
 
+  @Test
+  public void testBinaryFormats() throws IOException {
+    Random r = new Random(0);
+    for (boolean async : new boolean[] { true, false }) {
+      // ints, 4 bytes each, in buffers that split records
+      ReplacementDiskSort.BinaryFormat<IntElement> ints =
+        ReplacementDiskSort.BinaryFormat.fixedWidth(Integer.BYTES, new ReplacementDiskSort.RecordCodec<IntElement>() {
+          @Override
+          public int size(IntElement elem) {
+            return Integer.BYTES;
+          }
+
+          @Override
+          public void write(IntElement elem, ByteBuffer dest) {
+            dest.putInt(elem.getData());
+          }
+
+          @Override
+          public IntElement read(ByteBuffer src) {
+            return new IntElement(src.getInt());
+          }
+        }).bufferSize(1002).async(async).ioThreads(2);
+      File folder = tmp.newFolder();
+      File src = genIntFile(new File(folder, "source"), r, 50000);
+      File dest = new File(folder, "dest");
+      File work = new File(folder, "work");
+      work.mkdirs();
+      new ReplacementDiskSort<>(ints, Comparator.comparing(IntElement::getData), true).setFinalMergeSegments(3)
+        .setVerbose(null)
+        .run(src, 2000, 8, dest, work);
+      assertThat(dest.length(), Matchers.is(src.length()));
+      assertThat(sum(ints.iterMaker().make(dest)), Matchers.is(sum(ints.iterMaker().make(src))));
+      verifyOrder(dest, ints.iterMaker(), Comparator.comparing(IntElement::getData));
+      // a dozen runs and their merges, but never more than 3 segments of 8 + 1 files open at once
+      assertThat(ints.pooled(), Matchers.greaterThan(0));
+      assertThat(ints.pooled(), Matchers.lessThanOrEqualTo(2 * 3 * (8 + 1)));
+      // released, it holds nothing, and still works
+      ints.release();
+      assertThat(ints.pooled(), Matchers.is(0));
+      verifyOrder(dest, ints.iterMaker(), Comparator.comparing(IntElement::getData));
+
+      // strings, some longer than a buffer
+      ReplacementDiskSort.BinaryFormat<StrElement> strs = stringFormat().bufferSize(256).async(async);
+      src = new File(folder, "strings");
+      ReplacementDiskSort.ExternalAppender<StrElement> app = strs.appenderMaker().make(src);
+      char[] chars = new char[400];
+      for (int i = 0; i < 20000; i++) {
+        int len = 1 + r.nextInt(i % 100 == 0 ? 400 : 60);
+        for (int p = 0; p < len; p++) {
+          chars[p] = (char) (32 + r.nextInt(80));
+        }
+        app.append(new StrElement(new String(chars, 0, len)));
+      }
+      app.close();
+      dest = new File(folder, "sorted");
+      new ReplacementDiskSort<>(strs, Comparator.comparing(StrElement::getData), true).setVerbose(null)
+        .run(src, 1000, 10, dest, work);
+      assertThat(dest.length(), Matchers.is(src.length()));
+      verifyOrder(dest, strs.iterMaker(), Comparator.comparing(StrElement::getData));
+    }
+  }
+
+  @Test
+  public void testMemoryBudget() throws IOException {
+    Random r = new Random(0);
+    File folder = tmp.newFolder();
+    File work = new File(folder, "work");
+    work.mkdirs();
+
+    // variable size strings, two merges at a time
+    ReplacementDiskSort.BinaryFormat<StrElement> strs = stringFormat();
+    File src = new File(folder, "strings");
+    ReplacementDiskSort.ExternalAppender<StrElement> app = strs.appenderMaker().make(src);
+    char[] chars = new char[200];
+    for (int i = 0; i < 30000; i++) {
+      int len = 1 + r.nextInt(200);
+      for (int p = 0; p < len; p++) {
+        chars[p] = (char) (32 + r.nextInt(80));
+      }
+      app.append(new StrElement(new String(chars, 0, len)));
+    }
+    app.close();
+    long budget = 256 * 1024;
+    File dest = new File(folder, "sorted");
+    ReplacementDiskSort<StrElement> kd =
+      new ReplacementDiskSort<>(strs, Comparator.comparing(StrElement::getData), true).setMergeThreads(2)
+        .setSizer(e -> 64 + 2 * e.getData().length())
+        .setMemoryBudget(budget)
+        .setVerbose(null);
+    kd.run(src, dest, work);
+    assertThat(dest.length(), Matchers.is(src.length()));
+    verifyOrder(dest, strs.iterMaker(), Comparator.comparing(StrElement::getData));
+    List<ReplacementDiskSort.PassInfo> passes = kd.getPassInfo();
+    assertThat(passes.get(0).getPeakBytes(), Matchers.lessThanOrEqualTo(budget));
+    assertThat(passes.get(0).getPeakBytes(), Matchers.greaterThan(budget / 2));
+    // more than one level of merges, each within its half
+    assertThat(passes.get(0).getDestFiles().size(), Matchers.greaterThan(
+      (int) passes.stream().mapToInt(pi -> pi.getSrcFiles().size()).skip(1).max().getAsInt()));
+    passes.stream().skip(1).forEach(pi -> {
+      assertThat(pi.getSrcFiles().size(), Matchers.greaterThanOrEqualTo(2));
+      assertThat(pi.getPeakBytes(), Matchers.lessThanOrEqualTo(budget / 2));
+    });
+
+    // ints through plain appenders, element counts, with run workers
+    src = genIntFile(new File(folder, "ints"), r, 20000);
+    dest = new File(folder, "sortedInts");
+    ReplacementDiskSort<IntElement> ki = new ReplacementDiskSort<>(ReplacementDiskSortTest::makeIter,
+      ReplacementDiskSortTest::makeAppender, Comparator.comparing(IntElement::getData), true).setRunThreads(2)
+      .setSizer(e -> 32)
+      .setStreamBytes(32 * 1024)
+      .setVerbose(null);
+    ki.run(src, 1000, 10, dest, work);
+    verifyOrder(dest, ReplacementDiskSortTest::makeIter, Comparator.comparing(IntElement::getData));
+    List<ReplacementDiskSort.PassInfo> workers =
+      ki.getPassInfo().stream().filter(pi -> pi.getPass() == 0).collect(Collectors.toList());
+    assertThat(workers.size(), Matchers.is(2));
+    // each worker's heap of 500, plus its appender
+    workers.forEach(pi -> assertThat(pi.getPeakBytes(), Matchers.is(500L * 32 + 32 * 1024)));
+    ki.getPassInfo().forEach(pi -> assertThat(pi.getPeakBytes(), Matchers.greaterThanOrEqualTo(0L)));
+    assertThat(new ReplacementDiskSort.PassInfo(0, null, null, null, 0).getPeakBytes(), Matchers.is(-1L));
+  }
+
+  private static ReplacementDiskSort.BinaryFormat<StrElement> stringFormat() {
+    return ReplacementDiskSort.BinaryFormat.lengthPrefixed(new ReplacementDiskSort.RecordCodec<StrElement>() {
+      @Override
+      public int size(StrElement elem) {
+        return elem.getData().length();
+      }
+
+      @Override
+      public void write(StrElement elem, ByteBuffer dest) {
+        dest.put(elem.getData().getBytes(StandardCharsets.ISO_8859_1));
+      }
+
+      @Override
+      public StrElement read(ByteBuffer src) {
+        byte[] b = new byte[src.remaining()];
+        src.get(b);
+        return new StrElement(new String(b, StandardCharsets.ISO_8859_1));
+      }
+    });
+  }
+
+  private static long sum(ReplacementDiskSort.ExternalIterator<IntElement> iter) throws IOException {
+    long sum = 0;
+    for (IntElement p = iter.next(); p != null; p = iter.next()) {
+      sum = sum + p.getData();
+    }
+    return sum;
+  }
+
   public static void genRandString(File dest, int minChars, int maxChars, int many, Random r) throws IOException {
     int range = maxChars - minChars;
     FileWriter fw = new FileWriter(dest);